@@ -12,7 +12,15 @@ import logist.task.TaskSet;
 import logist.topology.Topology;
 import logist.topology.Topology.City;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class AuctionAgent implements AuctionBehavior {
@@ -21,6 +29,8 @@ public class AuctionAgent implements AuctionBehavior {
     private static final double LOSS_THRESHOLD = 0.8;
     private static final double INTEREST_THRESHOLD= 0.1;
     private static final double UNDERCUT_RATIO = 0.9;
+    // share of the bid budget refining the speculated plans when every planner has one for the task
+    private static final double SPECULATION_REFINE_SHARE = 0.1;
 
     private Topology topology;
     private TaskDistribution distribution;
@@ -30,10 +40,42 @@ public class AuctionAgent implements AuctionBehavior {
     private long timeout_plan;
     private long timeout_bid;
 
+    private ExecutorService bidExecutor;
+    private ExecutorService chainExecutor;
+    private int chains;
+    private long migrationInterval;
+    private boolean backgroundSearch;
+    private Speculator speculator;
+    private long iterationBudget;
+    private boolean adaptiveBid;
+    private double ruinRate;
+    private int ruinSize;
+    // annealing schedule of our planner and of the adversary's, "linear" or "metropolis"
+    private String annealing;
+    private String adversaryAnnealing;
+    private double initialAcceptance;
+    private int reheatAfter;
+    // number of fleets the adversary is guessed to have
+    private int adversaryHypotheses;
+    private MatchLog.Writer log;
+    // one JSON line of search figures per round, null unless enabled
+    private PrintWriter telemetry;
+    // binary record of every round, null unless enabled
+    private AuctionHistory.Writer history;
+
     private Planner planner;
+    // slots of the auctioned tasks, shared by our planner and the adversary's
+    private Planner.TaskSlots slots;
     private int round = 0;
 
+    // bidding statistics, reported once the auction is over
+    private int bidCount;
+    private long totalBidTime;
+    private long maxBidTime;
+    private long lastBidTime;
+
     private long currentPrediction = 0;
+    private long ownMarginal = 0;
 
     private Adversary adversary;
     private List<Task> tasks;
@@ -57,27 +99,112 @@ public class AuctionAgent implements AuctionBehavior {
         this.agent = agent;
         this.tasks = new ArrayList<>();
         this.payment = 0;
-        this.random = new Random();
-        this.planner = new Planner(agent.vehicles());
+
+        // every source of randomness derives from the seed, so that a match can be replayed
+        long seed = agent.readProperty("seed", Long.class, new Random().nextLong());
+        this.random = new Random(seed);
+
+        String record = agent.readProperty("record", String.class, "");
+        if (!record.isEmpty()) {
+            try {
+                log = new MatchLog.Writer(new File(record), agent, seed, topology, distribution);
+            } catch (IOException e) {
+                System.err.println("Cannot record the match: " + e);
+            }
+        }
+
+        String historyFile = agent.readProperty("history", String.class, "");
+        if (!historyFile.isEmpty()) {
+            try {
+                history = new AuctionHistory.Writer(new File(historyFile), agent.id());
+            } catch (IOException e) {
+                System.err.println("Cannot write the auction history: " + e);
+            }
+        }
+
+        String telemetryFile = agent.readProperty("telemetry", String.class, "");
+        if (!telemetryFile.isEmpty()) {
+            try {
+                telemetry = new PrintWriter(new FileWriter(telemetryFile));
+            } catch (IOException e) {
+                System.err.println("Cannot write the telemetry: " + e);
+            }
+        }
+
+        adversaryHypotheses = Math.max(1, readProperty("adversary-hypotheses", Integer.class, 2));
+        // one thread per simulation of a bid: ours and one per adversary hypothesis
+        bidExecutor = Executors.newFixedThreadPool(1 + adversaryHypotheses, r -> {
+            Thread thread = new Thread(r, "bid-simulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        chains = readProperty("chains", Integer.class, 1);
+        // every planner of a bid runs its chains at once, more chains than processors would only share them
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (chains > 1 && chains * (1 + adversaryHypotheses) > processors) {
+            chains = Math.max(1, processors / (1 + adversaryHypotheses));
+            System.out.println("Chains capped to " + chains + " for " + processors + " processors");
+        }
+        migrationInterval = readProperty("migration-interval", Integer.class, 0);
+        // a fixed number of iterations per search makes the agent deterministic, so the time based work is disabled
+        iterationBudget = readProperty("iteration-budget", Long.class, 0L);
+        if (chains > 1) {
+            // the chains of every planner of a bid run at the same time until the same deadline, a chain waiting
+            // for a thread would start after it, so there is one thread per chain of each planner
+            chainExecutor = Executors.newFixedThreadPool(chains * (1 + adversaryHypotheses), r -> {
+                Thread thread = new Thread(r, "annealing-chain");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        backgroundSearch = readProperty("background-search", Boolean.class, false) && iterationBudget == 0;
+        adaptiveBid = readProperty("adaptive-bid", Boolean.class, false);
+        ruinRate = readProperty("ruin-rate", Double.class, 0.0);
+        ruinSize = readProperty("ruin-size", Integer.class, 10);
+        annealing = readProperty("annealing", String.class, "linear");
+        adversaryAnnealing = readProperty("adversary-annealing", String.class, annealing);
+        initialAcceptance = readProperty("initial-acceptance", Double.class, 0.3);
+        reheatAfter = readProperty("reheat-after", Integer.class, 0);
+
+        int speculationTasks = readProperty("speculation-tasks", Integer.class, 0);
+        if (speculationTasks > 0 && iterationBudget == 0) {
+            speculator = new Speculator(topology, distribution, speculationTasks);
+        }
+
+        this.slots = new Planner.TaskSlots(TopologyIndex.of(topology));
+        this.planner = createPlanner(agent.vehicles(), annealing);
 
         System.out.println("Init Agent " + agent.id());
         agent.vehicles().forEach(v -> System.out.println(v.name() + " " + v.homeCity()));
 
-       this.adversary = new Adversary();
+       this.adversary = new Adversary(adversaryHypotheses);
+    }
+
+    /**
+     * Reads a property of the agent, recording its value when the match is recorded
+     */
+    private <T> T readProperty(String key, Class<T> type, T defaultValue) {
+        T value = agent.readProperty(key, type, defaultValue);
+        if (log != null) log.property(key, value);
+        return value;
     }
 
     @Override
     public void auctionResult(Task previous, int winner, Long[] bids) {
         System.out.println("Auction Result[" + agent.id() + "] : " + previous + " " + winner + " " + Arrays.toString(bids));
+        if (log != null) log.result(previous, winner, bids);
         boolean win = winner == agent.id();
 
         if (round == 0) {
-            // anchor vehicle in both plans
-            adversary.planner1.anchorVehicle(bids[1 - agent.id()], topology);
-            adversary.planner2.anchorVehicle(bids[1 - agent.id()], topology);
+            // anchor vehicle in every hypothesis
+            for (Planner hypothesis : adversary.hypotheses) {
+                hypothesis.anchorVehicle(bids[1 - agent.id()], topology);
+            }
         } else {
-            // check if shuffling is required
-            adversary.shuffleIfNeeded(win, bids[agent.id()], bids[1 - agent.id()]);
+            // weigh the hypotheses by how well they predicted the adversary's bid
+            adversary.updateWeights(bids[1 - agent.id()]);
         }
 
 
@@ -91,19 +218,136 @@ public class AuctionAgent implements AuctionBehavior {
         profit = (long) (payment - planner.lastConfirmedCost);
         adversary.auctionResult(previous, bids[1 - agent.id()], !win);
 
+        if (history != null) {
+            history.result(round, previous, winner, bids, planner,
+                    adversary.hypotheses, adversary.marginals, adversary.weights);
+        }
+        writeTelemetry(previous, winner, bids[agent.id()]);
         round++;
+
+        // use the time until the next bid to prepare the likely next tasks and improve the confirmed plans
+        if (speculator != null) {
+            speculator.start(planners());
+        }
+        if (backgroundSearch) {
+            planners().forEach(Planner::startBackgroundSearch);
+        }
+    }
+
+    /**
+     * Stops the speculation and hands the confirmed states back from the background searches,
+     * before the planners are used again
+     */
+    private void stopIdleWork() {
+        if (speculator != null) {
+            speculator.stop();
+        }
+        planners().forEach(Planner::stopBackgroundSearch);
+    }
+
+    private List<Planner> planners() {
+        List<Planner> planners = new ArrayList<>();
+        planners.add(planner);
+        planners.addAll(adversary.hypotheses);
+        return planners;
     }
 
     private long profit = 0;
 
+    /**
+     * Waits for a simulation submitted to the bid executor
+     *
+     * @param simulation the pending simulation
+     * @return its result
+     */
+    private static double join(Future<Double> simulation) {
+        try {
+            return simulation.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Simulation failed", e);
+        }
+    }
+
+    private Planner createPlanner(List<? extends Vehicle> vehicles, String annealing) {
+        Planner planner = new Planner(vehicles, slots, new Random(random.nextLong()));
+        if (chainExecutor != null) {
+            planner.setParallelChains(chainExecutor, chains, migrationInterval);
+        }
+        planner.setIterationBudget(iterationBudget);
+        planner.setRuinAndRecreate(ruinRate, ruinSize);
+        if (annealing.equals("metropolis")) {
+            planner.setMetropolis(initialAcceptance, reheatAfter);
+        }
+        if (telemetry != null) planner.enableTelemetry();
+        return planner;
+    }
+
+    /**
+     * Writes the figures of the searches run since the previous line and resets them
+     *
+     * @param task the auctioned task, null for the final plan
+     */
+    private void writeTelemetry(Task task, int winner, Long bid) {
+        if (telemetry == null) return;
+
+        StringBuilder json = new StringBuilder("{\"agent\":").append(agent.id())
+                .append(",\"round\":").append(task != null ? Integer.toString(round) : "\"plan\"");
+        if (task != null) {
+            json.append(",\"task\":").append(task.id)
+                    .append(",\"bid\":").append(bid)
+                    .append(",\"winner\":").append(winner)
+                    .append(",\"bid-ms\":").append(lastBidTime);
+        }
+
+        json.append(",\"weights\":").append(Arrays.toString(adversary.weights));
+
+        List<Planner> planners = planners();
+        for (int i = 0; i < planners.size(); i++) {
+            json.append(",\"").append(i == 0 ? "own" : "adversary" + i).append("\":");
+            planners.get(i).getTelemetry().appendJson(json);
+            planners.get(i).getTelemetry().reset();
+        }
+
+        telemetry.println(json.append('}'));
+        telemetry.flush();
+    }
+
     @Override
     public Long askPrice(Task task) {
+        long start = System.currentTimeMillis();
+        Long bid = computeBid(task);
+        long duration = System.currentTimeMillis() - start;
+        if (log != null) log.bid(task, bid);
+        if (history != null) history.bid(task, bid, ownMarginal, currentPrediction, duration);
+
+        bidCount++;
+        totalBidTime += duration;
+        maxBidTime = Math.max(maxBidTime, duration);
+        lastBidTime = duration;
+
+        return bid;
+    }
+
+    private Long computeBid(Task task) {
         System.out.println("Ask Price[" + agent.id() + "] " + task);
-        long time = timeout_bid - 2000;
-        long  marginalCost = adversary.getNewMarginal(task, time / 2);
+        long start = System.currentTimeMillis();
+        stopIdleWork();
+
+        long remaining = timeout_bid - 2000 - (System.currentTimeMillis() - start);
+
+        // every plan already contains the task and was searched between rounds, a short refinement is enough
+        boolean hit = speculator != null && planners().stream().allMatch(p -> p.hasSpeculation(task));
+        long budget = hit ? (long) (remaining * SPECULATION_REFINE_SHARE) : remaining;
+        if (hit) System.out.println("Speculation hit, refining for " + budget + " ms");
 
-        long futureCost =  (long) planner.simulateWithNewTask(task, time / 2, false);
+        // all simulations run concurrently with the full budget, the scheduler ends the ones which settle early
+        BidScheduler scheduler = adaptiveBid ? new BidScheduler(budget) : null;
+        Future<Double> ownSimulation = bidExecutor.submit(() -> planner.simulateWithNewTask(task, budget, false, scheduler));
+        long  marginalCost = adversary.getNewMarginal(task, budget, scheduler);
+
+        long futureCost =  (long) join(ownSimulation);
         long ourMarginal = futureCost - (long) planner.lastConfirmedCost;
+        ownMarginal = ourMarginal;
 
         long bid = Math.max(0, ourMarginal);
 
@@ -177,30 +421,61 @@ public class AuctionAgent implements AuctionBehavior {
 
     @Override
     public List<Plan> plan(List<Vehicle> vehicles, TaskSet tasks) {
-        return planner.getFinalPlan(vehicles, tasks, timeout_plan - 1000);
+        stopIdleWork();
+        List<Plan> plans = planner.getFinalPlan(vehicles, tasks, timeout_plan - 1000);
+        if (log != null) {
+            double cost = 0;
+            for (int i = 0; i < plans.size(); i++) cost += plans.get(i).totalDistance() * vehicles.get(i).costPerKm();
+            log.plan(cost);
+        }
+
+        // parsed by the tournament runner
+        long iterations = planners().stream().mapToLong(Planner::getIterations).sum();
+        System.out.println("Statistics[" + agent.name() + "] bids=" + bidCount
+                + " bid-ms=" + (bidCount == 0 ? 0 : totalBidTime / bidCount)
+                + " max-bid-ms=" + maxBidTime + " iterations=" + iterations);
+
+        writeTelemetry(null, -1, null);
+        if (telemetry != null) telemetry.close();
+        if (history != null) history.close();
+
+        return plans;
     }
 
     /**
      * class to represent everything related to the adversary
      */
     public class Adversary {
+        // standard deviation of the log of the adversary's bid around the marginal cost of a hypothesis
+        private static final double BID_NOISE = 0.5;
+        // share of the uniform weight under which a hypothesis is dropped for a new fleet
+        private static final double PRUNE_WEIGHT = 0.2;
+        // share of the bid budget given to the least likely hypothesis
+        private static final double MINIMUM_BUDGET = 0.25;
+
         public List<Task> tasks;
         public HashMap<Task, Long> bids;
-        public Planner planner1;
-        public Planner planner2;
+        // guesses of the adversary's fleet, with their posterior probability and their marginal cost of the last task
+        public List<Planner> hypotheses;
+        public double[] weights;
+        private double[] marginals;
         public long payment;
         public long profit;
         public double averageRatio;
 
-        public Adversary() {
-            // Init adversary with 2 configurations
-            List<FastVehicle> advVehicles = FastVehicle.generateVehicles(agent.vehicles(), topology, false, false, true, FastVehicle.HomeCityRandomness.FULL);
-            List<FastVehicle> advVehicles2 = FastVehicle.generateVehicles(agent.vehicles(), topology, true, true, true, FastVehicle.HomeCityRandomness.FULL);
-
+        public Adversary(int count) {
+            // Init adversary with count configurations, alternately with varied and with our own capacities and costs
             tasks = new ArrayList<>();
             bids = new HashMap<>();
-            planner1 = new Planner(advVehicles);
-            planner2 = new Planner(advVehicles2);
+            hypotheses = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                boolean same = i % 2 == 1;
+                List<FastVehicle> vehicles = FastVehicle.generateVehicles(agent.vehicles(), topology, same, same, true, FastVehicle.HomeCityRandomness.FULL, random);
+                hypotheses.add(createPlanner(vehicles, adversaryAnnealing));
+            }
+            weights = new double[count];
+            Arrays.fill(weights, 1.0 / count);
+            marginals = new double[count];
             payment = 0;
             averageRatio = 1;
         }
@@ -216,8 +491,7 @@ public class AuctionAgent implements AuctionBehavior {
             if (winner) {
                 payment += bid;
                 tasks.add(task);
-                planner1.confirmNewPlan();
-                planner2.confirmNewPlan();
+                hypotheses.forEach(Planner::confirmNewPlan);
                 double ratio = bid / (double) currentPrediction;
                 if (ratio > 0.9 && ratio < 1.5) {
                     averageRatio = (averageRatio + 2.0 * ratio ) / 3.0;
@@ -227,54 +501,69 @@ public class AuctionAgent implements AuctionBehavior {
             bids.put(task, bid);
         }
 
-
         /**
-         * Evaluates whether a vehicle reshuffle is needed in either of the plans
+         * Bayesian update of the weights with the adversary's bid, assumed to be its marginal cost times the
+         * average ratio with a log-normal error. The hypotheses left with a negligible weight get new home cities
+         * and start again from a uniform weight. Must be called before the simulations of the round are confirmed.
          *
-         * @param agentWin if the agent won
-         * @param bid1 agent bid
-         * @param bid2 adversary bid
+         * @param bid the adversary bid
          */
-        public void shuffleIfNeeded(boolean agentWin, long bid1, long bid2 ){
-            if (agentWin && Math.abs(currentPrediction - bid2) >  bid2 * 0.25) {
-                if (Math.abs(planner1.lastSimulatedCost - bid2) >  bid2 * 0.33) {
-                    planner1.shuffleVehicles(topology);
-                }
-                if (Math.abs(planner2.lastSimulatedCost - bid2) >  bid2 * 0.33) {
-                    planner2.shuffleVehicles(topology);
-                }
-            } else if (!agentWin) {
-                double ratio = (bid1 - bid2)/(double) (bid1 - currentPrediction);
-                if (ratio < 0.8 || ratio > 1.3) {
-                    if (bid2 / planner1.lastConfirmedCost < 0.8 || bid2 / planner1.lastConfirmedCost > 1.3) {
-                        planner1.shuffleVehicles(topology);
-                    }
+        public void updateWeights(long bid) {
+            for (int i = 0; i < weights.length; i++) {
+                double error = Math.log(Math.max(bid, 1) / (Math.max(marginals[i], 1) * averageRatio));
+                weights[i] *= Math.exp(-error * error / (2 * BID_NOISE * BID_NOISE));
+            }
+            normalizeWeights();
 
-                    if (bid2 / planner2.lastConfirmedCost < 0.8 || bid2 / planner2.lastConfirmedCost > 1.3) {
-                        planner2.shuffleVehicles(topology);
-                    }
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] < PRUNE_WEIGHT / weights.length) {
+                    hypotheses.get(i).shuffleVehicles(topology);
+                    weights[i] = 1.0 / weights.length;
                 }
             }
+            normalizeWeights();
+            System.out.println("Hypotheses weights: " + Arrays.toString(weights));
+        }
+
+        private void normalizeWeights() {
+            double total = Arrays.stream(weights).sum();
+            // no hypothesis explains the bid, start again from uniform weights
+            if (!(total > 0)) {
+                Arrays.fill(weights, 1);
+                total = weights.length;
+            }
+            for (int i = 0; i < weights.length; i++) weights[i] /= total;
         }
 
         /**
          * @param task task to be added
          * @param timeout timeout for the simulation
-         * @return average marginal cost of the two plans
+         * @param scheduler scheduler of the bid, null to search until timeout
+         * @return weighted average of the marginal costs of the hypotheses
          */
-        public long getNewMarginal(Task task, long timeout) {
-            return (long) simulateWithNewTask(task, timeout, true);
+        public long getNewMarginal(Task task, long timeout, BidScheduler scheduler) {
+            return (long) simulateWithNewTask(task, timeout, true, scheduler);
         }
 
-        private double simulateWithNewTask(Task task, long timeout, boolean getMarginal) {
-            long separateTimout = timeout / 2;
+        private double simulateWithNewTask(Task task, long timeout, boolean getMarginal, BidScheduler scheduler) {
+            double maxWeight = Arrays.stream(weights).max().orElse(1);
+            List<Future<Double>> simulations = new ArrayList<>();
+            for (int i = 0; i < hypotheses.size(); i++) {
+                Planner hypothesis = hypotheses.get(i);
+                // the likeliest hypotheses search for the whole budget, the others in proportion to their weight
+                long budget = (long) (timeout * Math.max(MINIMUM_BUDGET, weights[i] / maxWeight));
+                simulations.add(bidExecutor.submit(() -> hypothesis.simulateWithNewTask(task, budget, getMarginal, scheduler)));
+            }
 
-            double val1 = planner1.simulateWithNewTask(task, separateTimout, getMarginal);
-            double val2 = planner2.simulateWithNewTask(task, separateTimout, getMarginal);
+            double value = 0;
+            for (int i = 0; i < simulations.size(); i++) {
+                marginals[i] = join(simulations.get(i));
+                value += weights[i] * marginals[i];
+            }
 
-            System.out.println(val1 + " " +  val2 + " " + payment);
+            System.out.println(Arrays.toString(marginals) + " " + payment);
 
-            return (val1 + val2) / 2.0;
+            return value;
         }
 
         /**
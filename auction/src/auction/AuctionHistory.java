@@ -0,0 +1,263 @@
+package auction;
+
+import logist.task.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary history of the rounds of a match as the agent saw them: the task, every bid and the winner, our marginal
+ * cost and our prediction of the adversary's, the marginal cost, weight and confirmed cost of every adversary
+ * hypothesis, our confirmed cost and the time of our bid.
+ * <p>
+ * The file is memory mapped and only appended to, so that writing a round is a copy into memory without any
+ * system call, and the rounds written survive a crash of the agent. Each round is preceded by its length,
+ * written last, and the file is padded with zeros: a reader stops at the first round of length zero.
+ * It can be dumped as CSV for offline analysis:
+ * <pre>
+ * java -cp bin:../intelagent_jars/* auction.AuctionHistory history.bin
+ * </pre>
+ */
+public class AuctionHistory {
+    private static final int MAGIC = 0x41554348;
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 + 2 + 1;
+    // initial size of the mapping, doubled whenever a round does not fit
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    public int agentId;
+    public List<Round> rounds = new ArrayList<>();
+
+    public static class Round {
+        public int round;
+        public int taskId;
+        public int pickup;
+        public int delivery;
+        public int weight;
+        public long reward;
+        public int winner;
+        // null for the agents which did not bid
+        public Long[] bids;
+        // our bid, -1 if we did not bid, and the marginal costs it was computed from
+        public long bid;
+        public long marginal;
+        public long prediction;
+        public double confirmedCost;
+        // by adversary hypothesis: marginal cost of the task, weight after the round and confirmed cost
+        public double[] hypothesisMarginals;
+        public double[] hypothesisWeights;
+        public double[] hypothesisCosts;
+        public long bidMillis;
+    }
+
+    /**
+     * Reads a whole history, stopping at its first incomplete round
+     */
+    public static AuctionHistory read(File file) throws IOException {
+        AuctionHistory history = new AuctionHistory();
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) throw new IOException(file + " is not an auction history");
+            int version = buffer.getShort();
+            if (version != VERSION) throw new IOException("Unsupported auction history version " + version);
+            history.agentId = buffer.get();
+
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+                int start = buffer.position();
+                history.rounds.add(readRound(buffer));
+                buffer.position(start + length);
+            }
+        }
+
+        return history;
+    }
+
+    private static Round readRound(ByteBuffer in) {
+        Round round = new Round();
+        round.round = in.getInt();
+        round.taskId = in.getInt();
+        round.pickup = in.getShort();
+        round.delivery = in.getShort();
+        round.weight = in.getInt();
+        round.reward = in.getLong();
+        round.winner = in.get();
+        round.bids = new Long[in.get()];
+        for (int i = 0; i < round.bids.length; i++) {
+            long bid = in.getLong();
+            round.bids[i] = bid < 0 ? null : bid;
+        }
+        round.bid = in.getLong();
+        round.marginal = in.getLong();
+        round.prediction = in.getLong();
+        round.confirmedCost = in.getDouble();
+
+        int hypotheses = in.get();
+        round.hypothesisMarginals = new double[hypotheses];
+        round.hypothesisWeights = new double[hypotheses];
+        round.hypothesisCosts = new double[hypotheses];
+        for (int i = 0; i < hypotheses; i++) {
+            round.hypothesisMarginals[i] = in.getDouble();
+            round.hypothesisWeights[i] = in.getDouble();
+            round.hypothesisCosts[i] = in.getDouble();
+        }
+        round.bidMillis = in.getInt();
+        return round;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: AuctionHistory history.bin");
+            System.exit(1);
+        }
+
+        AuctionHistory history = read(new File(args[0]));
+        System.out.println("agent,round,task,pickup,delivery,weight,winner,bids,bid,marginal,prediction,cost,"
+                + "hypothesis-marginals,hypothesis-weights,hypothesis-costs,bid-ms");
+        for (Round round : history.rounds) {
+            System.out.println(history.agentId + "," + round.round + "," + round.taskId + "," + round.pickup + ","
+                    + round.delivery + "," + round.weight + "," + round.winner + "," + join(round.bids) + ","
+                    + round.bid + "," + round.marginal + "," + round.prediction + "," + round.confirmedCost + ","
+                    + join(round.hypothesisMarginals) + "," + join(round.hypothesisWeights) + ","
+                    + join(round.hypothesisCosts) + "," + round.bidMillis);
+        }
+    }
+
+    // values of a cell separated by spaces, so that the CSV keeps one column per field
+    private static String join(Object[] values) {
+        return Arrays.toString(values).replaceAll("[\\[\\],]", "");
+    }
+
+    private static String join(double[] values) {
+        return Arrays.toString(values).replaceAll("[\\[\\],]", "");
+    }
+
+    /**
+     * Appends the rounds of a match to a history as they end. The bid path only keeps a few values, the round
+     * is copied to the mapping with the result of the auction. A failure is reported once and ends the history
+     * without disturbing the match.
+     */
+    public static class Writer {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private boolean failed;
+        private boolean staleReported;
+        private Task task;
+        private long bid;
+        private long marginal;
+        private long prediction;
+        private long bidMillis;
+
+        public Writer(File file, int agentId) throws IOException {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            channel = out.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+
+            buffer.putInt(MAGIC);
+            buffer.putShort((short) VERSION);
+            buffer.put((byte) agentId);
+        }
+
+        /**
+         * Keeps our bid and what it was computed from until the result of the auction is known
+         */
+        public void bid(Task task, long bid, long marginal, long prediction, long millis) {
+            this.task = task;
+            this.bid = bid;
+            this.marginal = marginal;
+            this.prediction = prediction;
+            this.bidMillis = millis;
+        }
+
+        /**
+         * @param planner    our planner, once the result is confirmed
+         * @param hypotheses the adversary hypotheses, in the order of their marginals and weights
+         */
+        public void result(int round, Task task, int winner, Long[] bids, Planner planner,
+                           List<Planner> hypotheses, double[] marginals, double[] weights) {
+            if (failed) return;
+            boolean known = this.task != null && this.task.id == task.id;
+
+            int length = 4 + 4 + 2 + 2 + 4 + 8 + 1 + 1 + 8 * bids.length + 8 + 8 + 8 + 8 + 1
+                    + 24 * hypotheses.size() + 4;
+            try {
+                ensureCapacity(4 + length + 4);
+            } catch (IOException e) {
+                System.err.println("Cannot write the auction history: " + e);
+                failed = true;
+                return;
+            }
+
+            int start = buffer.position();
+            buffer.position(start + 4);
+            buffer.putInt(round);
+            buffer.putInt(task.id);
+            buffer.putShort((short) task.pickupCity.id);
+            buffer.putShort((short) task.deliveryCity.id);
+            buffer.putInt(task.weight);
+            buffer.putLong(task.reward);
+            buffer.put((byte) winner);
+            buffer.put((byte) bids.length);
+            for (Long other : bids) buffer.putLong(other == null ? -1 : other);
+            buffer.putLong(known ? bid : -1);
+            buffer.putLong(known ? marginal : 0);
+            buffer.putLong(known ? prediction : 0);
+            buffer.putDouble(confirmedCost(planner));
+            buffer.put((byte) hypotheses.size());
+            for (int i = 0; i < hypotheses.size(); i++) {
+                buffer.putDouble(marginals[i]);
+                buffer.putDouble(weights[i]);
+                buffer.putDouble(confirmedCost(hypotheses.get(i)));
+            }
+            buffer.putInt((int) (known ? bidMillis : 0));
+            // the length commits the round
+            buffer.putInt(start, length);
+        }
+
+        /**
+         * @return the cost of the planner's confirmed state, reporting once a bid cost which no longer matches it
+         */
+        private double confirmedCost(Planner planner) {
+            double cost = planner.getConfirmedCost();
+            if (!staleReported && Math.abs(planner.lastConfirmedCost - cost) > 1e-6 * Math.max(1, cost)) {
+                System.err.println("Confirmed cost " + planner.lastConfirmedCost + " differs from the state cost " + cost);
+                staleReported = true;
+            }
+            return cost;
+        }
+
+        /**
+         * Writes the history back to the file and ends it
+         */
+        public void close() {
+            if (failed) return;
+            failed = true;
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Cannot write the auction history: " + e);
+            }
+        }
+
+        // maps a larger region when the next round may not fit, keeping a zero length after it
+        private void ensureCapacity(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+
+            int position = buffer.position();
+            long size = Math.max(2L * buffer.capacity(), position + bytes);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(position);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package auction;
+
+/**
+ * Ends the searches of a bid early once they stop improving. Every search runs for a minimum share of the
+ * budget, then a search whose best cost stops improving is settled: it is given a short time to cool down and
+ * ends. Each search is judged on its own and no search is given more than the budget, so the only time handed
+ * over is the processor time the settled searches no longer use. When every search has settled the bid is
+ * returned early, a hard round keeps searching until the end of the budget.
+ */
+public class BidScheduler {
+    // ms between two reports of a search
+    static final long REPORT_INTERVAL = 10;
+    // share of the budget every search runs before it can settle
+    private static final double MINIMUM_SHARE = 0.25;
+    // relative decrease of the best cost counted as an improvement
+    private static final double IMPROVEMENT = 0.002;
+    // share of its elapsed time a search must go without improvement to settle
+    private static final double PLATEAU_SHARE = 0.4;
+    // share of the budget given to a settled search to cool down
+    private static final double COOLDOWN_SHARE = 0.1;
+
+    private final long minimum;
+    private final long cooldown;
+
+    /**
+     * @param budget time in ms given to each search of the bid
+     */
+    public BidScheduler(long budget) {
+        this.minimum = (long) (budget * MINIMUM_SHARE);
+        this.cooldown = Math.max(REPORT_INTERVAL, (long) (budget * COOLDOWN_SHARE));
+    }
+
+    /**
+     * @param start    start of the search
+     * @param deadline time at which the search ends at the latest
+     * @param cost     cost of its initial state
+     * @return the schedule of a search, only to be used by the thread running it
+     */
+    Schedule register(long start, long deadline, double cost) {
+        return new Schedule(start, deadline, cost);
+    }
+
+    class Schedule {
+        private final long start;
+        private long end;
+        private boolean settled;
+        // best cost at the last improvement, and its time
+        private double reference;
+        private long improved;
+
+        private Schedule(long start, long deadline, double cost) {
+            this.start = start;
+            this.end = deadline;
+            this.reference = cost;
+            this.improved = start;
+        }
+
+        /**
+         * @param time current time
+         * @param best best cost found so far by the search
+         * @return the time at which the search must end
+         */
+        long report(long time, double best) {
+            if (best < reference * (1 - IMPROVEMENT)) {
+                reference = best;
+                improved = time;
+            }
+
+            long elapsed = time - start;
+            if (!settled && elapsed >= minimum && time - improved >= PLATEAU_SHARE * elapsed) {
+                settled = true;
+                end = Math.min(end, time + cooldown);
+            }
+
+            return end;
+        }
+    }
+}
@@ -40,9 +40,9 @@ public class FastVehicle implements Vehicle {
                                                      boolean sameNumber,
                                                      boolean sameCapacity,
                                                      boolean sameCost,
-                                                     HomeCityRandomness cityRandomness) {
+                                                     HomeCityRandomness cityRandomness,
+                                                     Random random) {
         List<FastVehicle> newVehicles = new ArrayList<>();
-        Random random = new Random();
 
         // Generate number of new vehicle
         int nVehicles = vehicles.size();
@@ -56,7 +56,7 @@ public class FastVehicle implements Vehicle {
         for(int i = 0; i < nVehicles; ++i) {
             Vehicle reference = vehicles.get(i % vehicles.size());
 
-            int capacity = generateValue(reference.capacity(), sameCapacity, 0.2);
+            int capacity = generateValue(reference.capacity(), sameCapacity, 0.2, random);
 
 
             Topology.City city;
@@ -67,10 +67,10 @@ public class FastVehicle implements Vehicle {
                 } while (used.contains(city));
                 used.add(city);
             } else {
-                city = generateHomeCity(topology, reference.homeCity(), cityRandomness);
+                city = generateHomeCity(topology, reference.homeCity(), cityRandomness, random);
             }
 
-            int costPerKm = generateValue(reference.costPerKm(), sameCost, 0.2);
+            int costPerKm = generateValue(reference.costPerKm(), sameCost, 0.2, random);
 
             FastVehicle v = new FastVehicle(capacity, city, costPerKm);
             newVehicles.add(v);
@@ -79,26 +79,25 @@ public class FastVehicle implements Vehicle {
         return newVehicles;
     }
 
-    private static int generateValue(int value, boolean same, double scaleWidth) {
+    private static int generateValue(int value, boolean same, double scaleWidth, Random random) {
         if (same) return value;
 
-        Random random = new Random();
         double window = random.nextDouble() * scaleWidth;
         double factor = random.nextBoolean() ? 1 - window : 1 + window;
 
         return (int) (factor * value);
     }
 
-    private static Topology.City generateHomeCity(Topology topology, Topology.City city, HomeCityRandomness randomness) {
+    private static Topology.City generateHomeCity(Topology topology, Topology.City city, HomeCityRandomness randomness, Random random) {
         switch (randomness) {
             case NONE:
                 return city;
 
             case NEIGHBOR:
-                return city.randomNeighbor(new Random());
+                return city.randomNeighbor(random);
 
             case FULL:
-                return topology.randomCity(new Random());
+                return topology.randomCity(random);
         }
 
         return city;
@@ -0,0 +1,239 @@
+package auction;
+
+import logist.agent.Agent;
+import logist.simulation.Vehicle;
+import logist.task.Task;
+import logist.task.TaskDistribution;
+import logist.topology.Topology;
+import logist.topology.Topology.City;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary log of the auctions seen by an agent, holding everything needed to run the agent again on them:
+ * its seed, the properties it read, its vehicles, the cities of the topology and the task distribution,
+ * then every task with the agent's bid, the winner and all the bids.
+ */
+public class MatchLog {
+    private static final int MAGIC = 0x4155434C;
+    private static final int VERSION = 1;
+
+    private static final byte PROPERTY = 1;
+    private static final byte ROUND = 2;
+    private static final byte PLAN = 3;
+
+    public int agentId;
+    public long seed;
+    public List<String> cities = new ArrayList<>();
+    // distribution between every pair of cities, indexed by from.id * cities + to.id
+    public double[] probabilities;
+    public int[] rewards;
+    public int[] weights;
+    public List<VehicleRecord> vehicles = new ArrayList<>();
+    public Map<String, String> properties = new LinkedHashMap<>();
+    public List<Round> rounds = new ArrayList<>();
+    // cost of the final plan, NaN if the match did not get that far
+    public double planCost = Double.NaN;
+
+    public static class VehicleRecord {
+        public String name;
+        public int capacity;
+        public int costPerKm;
+        public int home;
+    }
+
+    public static class Round {
+        public int taskId;
+        public int pickup;
+        public int delivery;
+        public long reward;
+        public int weight;
+        public long bid;
+        public int winner;
+        // null for the agents which did not bid
+        public Long[] bids;
+
+        public Task task(Topology topology) {
+            return new Task(taskId, topology.cities().get(pickup), topology.cities().get(delivery), reward, weight);
+        }
+    }
+
+    /**
+     * Reads a whole log, stopping at its first incomplete record
+     */
+    public static MatchLog read(File file) throws IOException {
+        MatchLog log = new MatchLog();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not a match log");
+            int version = in.readShort();
+            if (version != VERSION) throw new IOException("Unsupported match log version " + version);
+
+            log.agentId = in.readByte();
+            log.seed = in.readLong();
+
+            int cityCount = in.readShort();
+            for (int i = 0; i < cityCount; i++) log.cities.add(in.readUTF());
+
+            int pairs = cityCount * cityCount;
+            log.probabilities = new double[pairs];
+            log.rewards = new int[pairs];
+            log.weights = new int[pairs];
+            for (int i = 0; i < pairs; i++) {
+                log.probabilities[i] = in.readDouble();
+                log.rewards[i] = in.readInt();
+                log.weights[i] = in.readInt();
+            }
+
+            int vehicleCount = in.readByte();
+            for (int i = 0; i < vehicleCount; i++) {
+                VehicleRecord vehicle = new VehicleRecord();
+                vehicle.name = in.readUTF();
+                vehicle.capacity = in.readInt();
+                vehicle.costPerKm = in.readInt();
+                vehicle.home = in.readShort();
+                log.vehicles.add(vehicle);
+            }
+
+            try {
+                while (true) {
+                    switch (in.readByte()) {
+                        case PROPERTY:
+                            log.properties.put(in.readUTF(), in.readUTF());
+                            break;
+                        case ROUND:
+                            Round round = new Round();
+                            round.taskId = in.readInt();
+                            round.pickup = in.readShort();
+                            round.delivery = in.readShort();
+                            round.reward = in.readLong();
+                            round.weight = in.readInt();
+                            round.bid = in.readLong();
+                            round.winner = in.readByte();
+                            round.bids = new Long[in.readByte()];
+                            for (int i = 0; i < round.bids.length; i++) {
+                                long bid = in.readLong();
+                                round.bids[i] = bid < 0 ? null : bid;
+                            }
+                            log.rounds.add(round);
+                            break;
+                        case PLAN:
+                            log.planCost = in.readDouble();
+                            break;
+                        default:
+                            throw new IOException("Corrupted match log " + file);
+                    }
+                }
+            } catch (EOFException e) {
+                // end of the log, a round cut in the middle is dropped
+            }
+        }
+
+        return log;
+    }
+
+    /**
+     * Appends the records of a match to a log as they happen, so that a crashed match can still be replayed.
+     * A failure to write is reported once and ends the recording without disturbing the match.
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+        private boolean failed;
+        private Task task;
+        private long bid;
+
+        public Writer(File file, Agent agent, long seed, Topology topology, TaskDistribution distribution) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(agent.id());
+            out.writeLong(seed);
+
+            out.writeShort(topology.size());
+            for (City city : topology.cities()) out.writeUTF(city.name);
+
+            for (City from : topology.cities()) {
+                for (City to : topology.cities()) {
+                    out.writeDouble(distribution.probability(from, to));
+                    out.writeInt(distribution.reward(from, to));
+                    out.writeInt(distribution.weight(from, to));
+                }
+            }
+
+            out.writeByte(agent.vehicles().size());
+            for (Vehicle vehicle : agent.vehicles()) {
+                out.writeUTF(vehicle.name());
+                out.writeInt(vehicle.capacity());
+                out.writeInt(vehicle.costPerKm());
+                out.writeShort(vehicle.homeCity().id);
+            }
+            out.flush();
+        }
+
+        public void property(String key, Object value) {
+            write(out -> {
+                out.writeByte(PROPERTY);
+                out.writeUTF(key);
+                out.writeUTF(String.valueOf(value));
+            });
+        }
+
+        /**
+         * Keeps the bid of the agent until the result of the auction is known
+         */
+        public void bid(Task task, long bid) {
+            this.task = task;
+            this.bid = bid;
+        }
+
+        public void result(Task task, int winner, Long[] bids) {
+            long bid = this.task != null && this.task.id == task.id ? this.bid : -1;
+
+            write(out -> {
+                out.writeByte(ROUND);
+                out.writeInt(task.id);
+                out.writeShort(task.pickupCity.id);
+                out.writeShort(task.deliveryCity.id);
+                out.writeLong(task.reward);
+                out.writeInt(task.weight);
+                out.writeLong(bid);
+                out.writeByte(winner);
+                out.writeByte(bids.length);
+                for (Long other : bids) out.writeLong(other == null ? -1 : other);
+            });
+        }
+
+        /**
+         * Records the cost of the final plan and ends the log
+         */
+        public void plan(double cost) {
+            write(out -> {
+                out.writeByte(PLAN);
+                out.writeDouble(cost);
+                out.close();
+            });
+            failed = true;
+        }
+
+        private void write(Record record) {
+            if (failed) return;
+
+            try {
+                record.write(out);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot record the match: " + e);
+                failed = true;
+            }
+        }
+    }
+
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -7,11 +7,34 @@ import logist.task.TaskSet;
 import logist.topology.Topology;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 
 public class Planner {
 
     private static final int MAX_TEMP = 1;
     private static final double CHOICE_THRESHOLD = 0.4;
+    // duration of each annealing run of the background search
+    private static final long BACKGROUND_SEGMENT = 2000;
+    // starting temperature of searches resuming from a speculated state, to refine it rather than walk away from it
+    private static final double WARM_START_TEMP = 0.1;
+    // remembered (state, task) pairs, and searches after which a remembered state is returned without searching
+    private static final int MEMO_SIZE = 32;
+    private static final int MEMO_SEARCHES = 2;
+    // distinct states kept by every search, the best one ending it
+    private static final int ELITE_SIZE = 4;
+    // longest segment of stops relocated at once within a route
+    private static final int MAX_SEGMENT = 3;
+    // Metropolis schedule: neighbourhoods sampled to calibrate the starting temperature, ratio of the final
+    // temperature to the starting one, share of the starting temperature restored by a reheat, and probability
+    // of trying a random neighbour rather than the best one
+    private static final int CALIBRATION_SAMPLES = 10;
+    private static final double FINAL_TEMPERATURE_RATIO = 0.001;
+    private static final double REHEAT_RATIO = 0.3;
+    private static final double RANDOM_CHOICE = 0.1;
 
 
     public double lastSimulatedCost;
@@ -20,17 +43,167 @@ public class Planner {
     private State latestState;
     private State latestSimulation;
     private Random random;
-    private double temperature;
     private Vehicle anchor;
     private int taskCount;
+    // iterations of all the searches run for simulations and final plans
+    private long iterations;
+    // fixed number of iterations of each search, 0 to search until the deadlines
+    private long iterationBudget;
+
+    private ExecutorService executor;
+    private int chains;
+    private long migrationInterval;
+
+    private BackgroundSearch background;
+    // tuning of the annealing chains of every search
+    private final ChainSettings settings = new ChainSettings();
+    // figures of the searches run for simulations and final plans, null unless enabled
+    private Telemetry telemetry;
+
+    // best states found ahead of time for likely tasks, by speculative task
+    private final HashMap<Task, State> speculations = new HashMap<>();
+    private volatile Chain speculationChain;
+
+    // best distinct states found by the last simulation, and by the confirmed one, which seed the next chains
+    private List<State> simulatedElites = Collections.emptyList();
+    private List<State> elites = Collections.emptyList();
+
+    // best states found when adding a task to a state, by hash of both, the least recently used ones are dropped
+    private final LinkedHashMap<Long, MemoEntry> memo = new LinkedHashMap<Long, MemoEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MemoEntry> eldest) {
+            return size() > MEMO_SIZE;
+        }
+    };
+
+    public Planner(List<? extends Vehicle> vehicles, Topology topology) {
+        this(vehicles, topology, new Random());
+    }
+
+    /**
+     * @param random source of all the randomness of the planner
+     */
+    public Planner(List<? extends Vehicle> vehicles, Topology topology, Random random) {
+        this(vehicles, new TaskSlots(TopologyIndex.of(topology)), random);
+    }
 
-    public Planner(List<? extends Vehicle> vehicles) {
-        temperature = MAX_TEMP;
-        latestState = new State(vehicles);
-        random = new Random();
+    /**
+     * @param slots  slots of the tasks, shared with the other planners of the same tasks
+     * @param random source of all the randomness of the planner
+     */
+    public Planner(List<? extends Vehicle> vehicles, TaskSlots slots, Random random) {
+        latestState = new State(slots, vehicles);
+        this.random = random;
         lastConfirmedCost = 0;
         lastSimulatedCost = 0;
         taskCount = 0;
+        chains = 1;
+    }
+
+    /**
+     * Makes every search run several independent annealing chains from the same state, keeping the best result
+     *
+     * @param executor          executor running the chains, its threads must not be the ones calling the planner
+     * @param chains            number of chains per search
+     * @param migrationInterval time in ms after which chains worse than the best one found so far restart from it,
+     *                          0 to keep the chains fully independent
+     */
+    public void setParallelChains(ExecutorService executor, int chains, long migrationInterval) {
+        this.executor = executor;
+        this.chains = chains;
+        this.migrationInterval = migrationInterval;
+    }
+
+    /**
+     * Makes every search run a fixed number of iterations instead of running until its deadline,
+     * so that a planner with a seeded source of randomness gives the same results on every run
+     *
+     * @param iterationBudget iterations per search, 0 to go back to deadlines
+     */
+    public void setIterationBudget(long iterationBudget) {
+        this.iterationBudget = iterationBudget;
+    }
+
+    /**
+     * Makes the searches replace some of their iterations by a ruin-and-recreate step, which removes a few
+     * related tasks and inserts them back greedily or by regret
+     *
+     * @param rate       share of the iterations doing a ruin-and-recreate step, 0 to disable them
+     * @param maxRemoved maximum number of tasks removed by a step, at least 2
+     */
+    public void setRuinAndRecreate(double rate, int maxRemoved) {
+        settings.ruinRate = rate;
+        settings.maxRemoved = Math.max(2, maxRemoved);
+    }
+
+    /**
+     * Makes the searches use Metropolis acceptance, exp(-delta / temperature), with a starting temperature at
+     * which the mean uphill move of the initial state is accepted with the given probability, cooling
+     * geometrically and reheated when the best state stops improving. Otherwise any move is accepted with a
+     * probability equal to a temperature decreasing linearly from 1.
+     *
+     * @param initialAcceptance probability of accepting the mean uphill move at the start
+     * @param reheatAfter       iterations without a new best state after which the temperature is raised again,
+     *                          0 to never reheat
+     */
+    public void setMetropolis(double initialAcceptance, int reheatAfter) {
+        settings.metropolis = true;
+        settings.initialAcceptance = initialAcceptance;
+        settings.reheatAfter = reheatAfter;
+    }
+
+    /**
+     * Starts collecting the figures of the searches run for simulations and final plans
+     */
+    public void enableTelemetry() {
+        if (telemetry == null) telemetry = new Telemetry();
+    }
+
+    /**
+     * @return the figures collected since the last reset, null if telemetry is not enabled
+     */
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Keeps improving the confirmed state on a background thread until {@link #stopBackgroundSearch()} is called.
+     * Nothing else may be done with the planner in the meantime.
+     */
+    public void startBackgroundSearch() {
+        if (background != null || taskCount == 0) return;
+
+        background = new BackgroundSearch(latestState.clone(), new Random(random.nextLong()), settings);
+        background.start();
+    }
+
+    /**
+     * Stops the background search and adopts its state if it improved on the confirmed one
+     */
+    public void stopBackgroundSearch() {
+        if (background == null) return;
+
+        background.halt();
+        if (background.bestCost < latestState.getCost()) {
+            latestState = background.best;
+            lastConfirmedCost = background.bestCost;
+            // the speculations are kept: the adopted state has the same tasks, only in better routes
+        }
+        background = null;
+    }
+
+    /**
+     * @return the cost of the confirmed state, as held by its routes
+     */
+    public double getConfirmedCost() {
+        return latestState.getCost();
+    }
+
+    /**
+     * @return the number of iterations run by the searches of simulations and final plans so far
+     */
+    public long getIterations() {
+        return iterations;
     }
 
     /**
@@ -40,27 +213,122 @@ public class Planner {
         latestState = latestSimulation;
         lastConfirmedCost = lastSimulatedCost;
         latestSimulation = null;
+        elites = simulatedElites;
+        speculations.clear();
         taskCount++;
     }
 
     /**
-     * Shuffles the home city of all vehicles
+     * Registers a task that may be speculated on later, must be called before any background work is started
+     *
+     * @param task the speculative task
+     */
+    public void prepareSpeculation(Task task) {
+        latestState.slots.intern(task);
+    }
+
+    /**
+     * Searches a plan for the confirmed tasks plus a task likely to be auctioned next, resuming the previous
+     * speculation on the same task if any. Only the speculation cache is touched, not the current simulation.
+     *
+     * @param task    a task registered with {@link #prepareSpeculation(Task)}
+     * @param timeout time bound
+     * @param halted  tells whether the speculation should be abandoned
+     */
+    public void speculate(Task task, long timeout, BooleanSupplier halted) {
+        long start = System.currentTimeMillis();
+        State previous = speculations.get(task);
+        State initial;
+
+        if (previous != null) {
+            initial = previous.clone();
+        } else {
+            initial = latestState.clone();
+            initial.addTask(task);
+        }
+
+        Chain chain = new Chain(initial, new Random(random.nextLong()), null, previous != null ? WARM_START_TEMP : MAX_TEMP);
+        chain.settings = settings;
+        speculationChain = chain;
+
+        // checked after publishing the chain so that cancelSpeculation() cannot miss it
+        if (!halted.getAsBoolean()) {
+            chain.run(start, timeout, start + timeout, 0, 0);
+        }
+        speculationChain = null;
+
+        if (previous == null || chain.cost < previous.getCost()) {
+            speculations.put(task, chain.state);
+        }
+    }
+
+    /**
+     * Interrupts the speculation running on another thread, if any
+     */
+    public void cancelSpeculation() {
+        Chain chain = speculationChain;
+        if (chain != null) chain.cancelled = true;
+    }
+
+    /**
+     * @return whether a speculated state can be reused for the task
+     */
+    public boolean hasSpeculation(Task task) {
+        return findSpeculation(task) != null;
+    }
+
+    // speculative tasks only differ in their id, a lighter task fits wherever the speculated one did
+    private Task findSpeculation(Task task) {
+        for (Task speculative : speculations.keySet()) {
+            if (speculative.pickupCity.equals(task.pickupCity) && speculative.deliveryCity.equals(task.deliveryCity)
+                    && task.weight <= speculative.weight) {
+                return speculative;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shuffles the home city of all vehicles, each one drawn among the cities free of the other vehicles
      *
      * @param topology the simulation's topology
      */
     public void shuffleVehicles(Topology topology) {
-        HashSet<Topology.City> used = new HashSet<>();
-        latestSimulation.firstTasks.forEach((vehicle, ctask) -> used.add(vehicle.homeCity()));
+        TopologyIndex index = TopologyIndex.of(topology);
+        Vehicle[] vehicles = latestSimulation.vehicles();
+        boolean[] used = new boolean[index.size()];
+        for (Vehicle vehicle : vehicles) used[vehicle.homeCity().id] = true;
+
+        // free cities in the first count entries
+        int[] free = new int[index.size()];
+        int count = 0;
+        for (int city = 0; city < free.length; city++) {
+            if (!used[city]) free[count++] = city;
+        }
 
-        latestSimulation.firstTasks.forEach((vehicle, ctask) -> {
-            Topology.City newHome;
-            used.remove(vehicle.homeCity());
-            do {
-                newHome = topology.randomCity(random);
-            } while (used.contains(newHome));
-            ((FastVehicle) vehicle).setHomeCity(newHome);
-            used.add(newHome);
-        });
+        for (Vehicle vehicle : vehicles) {
+            free[count++] = vehicle.homeCity().id;
+            int drawn = random.nextInt(count);
+            int newHome = free[drawn];
+            free[drawn] = free[--count];
+            ((FastVehicle) vehicle).setHomeCity(index.city(newHome));
+        }
+
+        refreshCosts();
+        speculations.clear();
+        memo.clear();
+        clearElites();
+    }
+
+    /**
+     * Computes the costs of the confirmed and simulated states again after their vehicles moved, along with the
+     * costs the bids are computed from
+     */
+    private void refreshCosts() {
+        latestState.refreshCosts();
+        latestSimulation.refreshCosts();
+        lastConfirmedCost = latestState.getCost();
+        lastSimulatedCost = latestSimulation.getCost();
     }
 
     /**
@@ -73,21 +341,28 @@ public class Planner {
      */
     public void anchorVehicle(Long cost, Topology topology) {
         try {
-            FastVehicle toAnchor = (FastVehicle) latestSimulation
-                    .firstTasks.entrySet().stream()
-                    .filter(e -> e.getValue() != null)
+            Vehicle[] vehicles = latestSimulation.vehicles();
+            int anchored = IntStream.range(0, vehicles.length)
+                    .filter(v -> latestSimulation.firstTask(v) >= 0)
                     .findFirst()
-                    .orElseThrow(() -> new Exception("Called at wrong step")).getKey();
-            Task task = latestSimulation.firstTasks.get(toAnchor).task;
+                    .orElseThrow(() -> new Exception("Called at wrong step"));
+            FastVehicle toAnchor = (FastVehicle) vehicles[anchored];
+            Task task = latestSimulation.task(latestSimulation.firstTask(anchored));
 
             double fixedCost = task.pickupCity.distanceTo(task.deliveryCity) * toAnchor.costPerKm();
 
+            // the home whose distance to the pickup is the nearest to the one making the aimed cost lies
+            // on either side of that distance in the pickup's row
+            TopologyIndex index = TopologyIndex.of(topology);
+            int pickup = task.pickupCity.id;
+            int rank = index.rankAtLeast(pickup, (cost - fixedCost) / toAnchor.costPerKm());
             Topology.City current = null;
             double minDiff = Double.POSITIVE_INFINITY;
             double currentCost = 0;
 
-            for (Topology.City c : topology.cities()) {
-                double pCost = c.distanceTo(task.pickupCity) * toAnchor.costPerKm();
+            for (int r = Math.max(0, rank - 1); r <= Math.min(index.size() - 1, rank); r++) {
+                Topology.City c = index.city(index.byDistance(pickup, r));
+                double pCost = index.distance(pickup, c.id) * toAnchor.costPerKm();
 
                 if (Math.abs(cost - (pCost + fixedCost)) < minDiff) {
                     minDiff = Math.abs(cost - (pCost + fixedCost));
@@ -102,40 +377,45 @@ public class Planner {
 
 
             final double concreteCost = currentCost;
-            HashSet<Topology.City> used = new HashSet<>();
+            boolean[] used = new boolean[index.size()];
             ArrayList<Vehicle> toRemove = new ArrayList<>();
-            latestSimulation.firstTasks.forEach((vehicle, ctask) -> used.add(vehicle.homeCity()));
+            for (Vehicle vehicle : vehicles) used[vehicle.homeCity().id] = true;
 
-            int iterLimit = topology.cities().size() * 10;
-
-            latestSimulation.firstTasks.forEach((vehicle, ctask) -> {
+            // every other vehicle must not be cheaper than the anchor to reach the pickup, it moves to the
+            // nearest free city far enough, or is considered excess when there is none
+            Arrays.stream(vehicles).forEach(vehicle -> {
                 if (vehicle == anchor) return;
 
                 double pickCost = vehicle.homeCity().distanceTo(task.pickupCity) * vehicle.costPerKm();
 
                 if (pickCost < concreteCost) {
-                    Topology.City newHome;
-                    used.remove(vehicle.homeCity());
-                    int iter = 0;
-                    do {
-                        if (iter > iterLimit) {
-                            toRemove.add(vehicle);
-                            return;
-                        }
-                        newHome = topology.randomCity(random);
-                        iter++;
+                    used[vehicle.homeCity().id] = false;
+                    int r = index.rankAtLeast(pickup, concreteCost / vehicle.costPerKm());
+                    // rounding may leave cities just short of the distance at the start of the range
+                    while (r < index.size() && (used[index.byDistance(pickup, r)]
+                            || index.distance(pickup, index.byDistance(pickup, r)) * vehicle.costPerKm() < concreteCost)) {
+                        r++;
                     }
-                    while (used.contains(newHome) || newHome.distanceTo(task.pickupCity) * vehicle.costPerKm() < concreteCost);
-                    ((FastVehicle) vehicle).setHomeCity(newHome);
-                    used.add(newHome);
+                    if (r == index.size()) {
+                        toRemove.add(vehicle);
+                        return;
+                    }
+                    int newHome = index.byDistance(pickup, r);
+                    ((FastVehicle) vehicle).setHomeCity(index.city(newHome));
+                    used[newHome] = true;
                 }
             });
 
             toRemove.forEach(v -> {
-                latestState.firstTasks.remove(v);
-                latestSimulation.firstTasks.remove(v);
+                latestState.removeVehicle(v);
+                latestSimulation.removeVehicle(v);
             });
 
+            refreshCosts();
+            speculations.clear();
+            memo.clear();
+            clearElites();
+
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -151,28 +431,10 @@ public class Planner {
         long deadline = start + timeout - 1000;
         latestSimulation = latestState.clone();
 
-        temperature = MAX_TEMP;
-
         if (taskCount > 0) {
-
-            long time;
-            double lastCost = latestSimulation.getCost();
-
-            while ((time = System.currentTimeMillis()) < deadline) {
-                List<State> neighbours = latestSimulation.chooseNeighbours();
-                State candidate = localChoice(neighbours);
-
-                double cost = candidate.getCost();
-
-                if (cost < lastCost || random.nextDouble() <= temperature) {
-                    latestSimulation = candidate;
-                    lastCost = cost;
-                }
-
-                temperature = 1 - ((time - start) / (double) timeout);
-            }
-
-            lastSimulatedCost = lastCost;
+            Chain result = anneal(latestSimulation, Collections.emptyList(), start, timeout, deadline, MAX_TEMP, null);
+            latestSimulation = result.state;
+            lastSimulatedCost = result.cost;
         }
 
 
@@ -180,7 +442,9 @@ public class Planner {
     }
 
     /**
-     * Adds the task to the nearest vehicle and starts updating the state until timeout, then returns the cost
+     * Adds the task to the nearest vehicle, or resumes from the best plan found by an earlier simulation of the same
+     * task on the same state or from a speculated plan containing the same task, and starts updating the state
+     * until timeout, then returns the cost. A plan already searched for {@link #MEMO_SEARCHES} times is returned as is.
      *
      * @param task        task to be analysed
      * @param timeout     time bound
@@ -188,357 +452,1631 @@ public class Planner {
      * @return marginal cost or absolute cost
      */
     public double simulateWithNewTask(Task task, long timeout, boolean getMarginal) {
+        return simulateWithNewTask(task, timeout, getMarginal, null);
+    }
+
+    /**
+     * Same as {@link #simulateWithNewTask(Task, long, boolean)}, ending the search early when the scheduler
+     * considers it settled
+     *
+     * @param scheduler scheduler of the bid, null to search until timeout
+     */
+    public double simulateWithNewTask(Task task, long timeout, boolean getMarginal, BidScheduler scheduler) {
         long start = System.currentTimeMillis();
         long deadline = start + timeout;
         latestSimulation = latestState.clone();
 
         double startCost = latestSimulation.getCost();
-
-        latestSimulation.addTask(task);
-        temperature = MAX_TEMP;
-
-        long time;
-        double lastCost = latestSimulation.getCost();
-
-        while ((time = System.currentTimeMillis()) < deadline) {
-            List<State> neighbours = latestSimulation.chooseNeighbours();
-            State candidate = localChoice(neighbours);
-
-            double cost = candidate.getCost();
-
-            if (cost < lastCost || random.nextDouble() <= temperature) {
-                latestSimulation = candidate;
-                lastCost = cost;
+        long key = memoKey(latestSimulation, task);
+        MemoEntry memoized = memo.get(key);
+        if (memoized != null && !memoized.matches(latestSimulation, task)) memoized = null;
+        Task speculative = memoized == null ? findSpeculation(task) : null;
+        Chain result;
+
+        if (memoized != null) {
+            State warm = memoized.resume(task);
+            if (telemetry != null) telemetry.memoHit();
+
+            if (memoized.searches >= MEMO_SEARCHES) {
+                result = new Chain(warm, random, null, 0);
+            } else {
+                result = anneal(warm.clone(), Collections.emptyList(), start, timeout, deadline, WARM_START_TEMP, scheduler);
+                if (warm.getCost() < result.cost) {
+                    result = new Chain(warm, random, null, 0);
+                }
             }
-
-            temperature = 1 - ((time - start) / (double) timeout);
+        } else if (speculative != null) {
+            State warm = speculations.remove(speculative);
+            warm.replaceTask(speculative, task);
+            if (telemetry != null) telemetry.speculationHit();
+
+            result = anneal(warm.clone(), Collections.emptyList(), start, timeout, deadline, WARM_START_TEMP, scheduler);
+            if (warm.getCost() < result.cost) {
+                result = new Chain(warm, random, null, 0);
+            }
+        } else {
+            latestSimulation.addTask(task);
+            result = anneal(latestSimulation, seeds(task), start, timeout, deadline, MAX_TEMP, scheduler);
         }
 
+        latestSimulation = result.state;
+        simulatedElites = result.elites.states;
+        double lastCost = result.cost;
+
         lastSimulatedCost = lastCost;
+        remember(key, memoized, startCost, task);
 
         return getMarginal ? lastCost - startCost : lastCost;
     }
 
 
     /**
-     * Return the best neighbor in term of the objective function
-     *
-     * @param neighbours
-     * @return Best neighbor state
+     * @return the confirmed elites other than the confirmed state with the task added, to start the chains
+     * after the first one from, none when a single chain runs
      */
-    private State localChoice(List<State> neighbours) {
-        State bestState = null;
-        double bestCost = Double.POSITIVE_INFINITY;
-
-        if (random.nextDouble() <= temperature) {
-            return neighbours.get(random.nextInt(neighbours.size()));
-        }
+    private List<State> seeds(Task task) {
+        if (executor == null || chains <= 1) return Collections.emptyList();
 
-        for (State state : neighbours) {
-            double cost = state.getCost();
+        List<State> seeds = new ArrayList<>();
+        for (State elite : elites) {
+            if (elite.hash() == latestState.hash()) continue;
 
-            if (cost < bestCost || cost == bestCost && random.nextBoolean()) {
-                bestCost = cost;
-                bestState = state;
-            }
+            State seed = elite.clone();
+            seed.addTask(task);
+            seeds.add(seed);
         }
-
-        return bestState;
+        return seeds;
     }
 
-    public static class State {
-        public HashMap<Vehicle, ConcreteTask> firstTasks;
-        public HashMap<ConcreteTask, ConcreteTask> nextTask;
+    private void clearElites() {
+        elites = Collections.emptyList();
+        simulatedElites = Collections.emptyList();
+    }
 
-        public State() {
+    private static long memoKey(State state, Task task) {
+        long signature = ((long) task.pickupCity.id << 40) ^ ((long) task.deliveryCity.id << 20) ^ task.weight;
+        return State.mix(state.hash() ^ State.mix(signature));
+    }
 
+    /**
+     * Keeps a copy of the simulated state for the next simulation of the same task on the same state
+     *
+     * @param memoized the entry the simulation resumed from, null if it did not
+     */
+    private void remember(long key, MemoEntry memoized, double baseCost, Task task) {
+        if (memoized == null) {
+            memoized = new MemoEntry(latestState.hash(), baseCost);
+            memo.put(key, memoized);
         }
 
-        public State(List<? extends Vehicle> vehicles) {
-            firstTasks = new HashMap<>();
-            nextTask = new HashMap<>();
+        memoized.task = task;
+        memoized.state = latestSimulation.clone();
+        memoized.searches++;
+    }
 
-            vehicles.forEach(v -> firstTasks.put(v, null));
+    /**
+     * Runs the annealing search from the given state until the deadline, on several chains when parallel chains
+     * are enabled
+     *
+     * @param initial        state to start from, used by the first chain
+     * @param seeds          states to start the next chains from, the others start from copies of the initial state
+     * @param start          start of the search
+     * @param timeout        duration used for the temperature decrease
+     * @param deadline       time at which the search stops
+     * @param maxTemperature starting temperature
+     * @param scheduler      scheduler which may end the chains before the deadline, null if there is none
+     * @return the chain which ended with the cheapest state, holding the elites of all the chains
+     */
+    private Chain anneal(State initial, List<State> seeds, long start, long timeout, long deadline, double maxTemperature, BidScheduler scheduler) {
+        // schedules depend on the timing of the threads, bounded searches always run their full budget
+        if (iterationBudget > 0) scheduler = null;
+
+        if (executor == null || chains <= 1) {
+            Chain chain = new Chain(initial, random, null, maxTemperature);
+            chain.settings = settings;
+            if (telemetry != null) chain.search = new Telemetry.Search(chain.cost);
+            if (scheduler != null) chain.schedule = scheduler.register(start, deadline, chain.cost);
+            chain.run(start, timeout, deadline, migrationInterval, iterationBudget);
+            iterations += chain.iterations;
+            if (telemetry != null) telemetry.add(chain.search);
+            return chain;
         }
 
-        public void addTask(Task task) {
-            try {
-                Vehicle candidate = firstTasks.keySet().stream().
-                        filter(v -> v.capacity() >= task.weight)
-                        .min(Comparator.comparingDouble(v -> v.homeCity().distanceTo(task.pickupCity)))
-                        .orElseThrow(() -> new Exception("No vehicle can handle the task"));
-
-                ConcreteTask pickup = ConcreteTask.pickup(task);
-                ConcreteTask delivery = ConcreteTask.delivery(task);
-
-                // Add to new vehicle
-                ConcreteTask first = firstTasks.get(candidate);
+        // migrations depend on the timing of the threads, bounded searches keep the chains independent
+        Migration migration = migrationInterval > 0 && iterationBudget == 0 ? new Migration() : null;
+        List<Future<Chain>> futures = new ArrayList<>();
+
+        for (int i = 0; i < chains; i++) {
+            State state = i == 0 ? initial : i <= seeds.size() ? seeds.get(i - 1) : initial.clone();
+            Chain chain = new Chain(state, new Random(random.nextLong()), migration, maxTemperature);
+            chain.settings = settings;
+            if (telemetry != null) chain.search = new Telemetry.Search(chain.cost);
+            if (scheduler != null) chain.schedule = scheduler.register(start, deadline, chain.cost);
+            futures.add(executor.submit(() -> {
+                chain.run(start, timeout, deadline, migrationInterval, iterationBudget);
+                return chain;
+            }));
+        }
 
-                firstTasks.put(candidate, pickup);
-                nextTask.put(pickup, delivery);
-                nextTask.put(delivery, first);
-            } catch (Exception e) {
+        Chain best = null;
+        List<Chain> finished = new ArrayList<>();
+        for (Future<Chain> future : futures) {
+            try {
+                Chain chain = future.get();
+                iterations += chain.iterations;
+                if (telemetry != null) telemetry.add(chain.search);
+                finished.add(chain);
+                if (best == null || chain.cost < best.cost) {
+                    best = chain;
+                }
+            } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
             }
         }
 
-        public State clone() {
-            State clone = new State();
-            clone.nextTask = new HashMap<>(nextTask);
-            clone.firstTasks = new HashMap<>(firstTasks);
-            return clone;
-        }
-
-        public double getCost() {
-            final double[] cost = {0};
+        if (best == null) return new Chain(initial, random, null, 0);
 
-            firstTasks.forEach(((vehicle, concreteTask) -> {
-                if (concreteTask != null) {
-                    double costPerKM = vehicle.costPerKm();
-                    ConcreteTask current = concreteTask;
+        for (Chain chain : finished) {
+            if (chain != best) best.elites.merge(chain.elites);
+        }
+        return best;
+    }
 
-                    cost[0] += vehicle.homeCity().distanceTo(current.task.pickupCity) * costPerKM;
+    /**
+     * The best state found for a task added to a state, identified by its hash and cost
+     */
+    private static class MemoEntry {
+        private final long baseHash;
+        private final double baseCost;
+        private Task task;
+        private State state;
+        private int searches;
+
+        private MemoEntry(long baseHash, double baseCost) {
+            this.baseHash = baseHash;
+            this.baseCost = baseCost;
+        }
 
-                    while (nextTask.get(current) != null) {
-                        ConcreteTask next = nextTask.get(current);
-                        Topology.City startCity = current.getCity();
-                        Topology.City endCity = next.getCity();
+        // rules out collisions of the hashes
+        private boolean matches(State base, Task task) {
+            return base.hash() == baseHash && base.getCost() == baseCost
+                    && this.task.pickupCity.equals(task.pickupCity) && this.task.deliveryCity.equals(task.deliveryCity)
+                    && this.task.weight == task.weight;
+        }
 
-                        cost[0] += startCity.distanceTo(endCity) * costPerKM;
-                        current = next;
-                    }
-                }
-            }));
+        /**
+         * @return a copy of the remembered state with the task in place of the remembered one
+         */
+        private State resume(Task task) {
+            State resumed = state.clone();
+            if (this.task.id != task.id) resumed.replaceTask(this.task, task);
+            return resumed;
+        }
+    }
 
-            return cost[0];
+    /**
+     * A single annealing run, owning its state and its source of randomness
+     */
+    private static class Chain {
+        private State state;
+        private final Random random;
+        private final Migration migration;
+        private final double maxTemperature;
+        private double temperature;
+        private double cost;
+        private long iterations;
+        private volatile boolean cancelled;
+        // figures of the run, null unless the planner collects them
+        private Telemetry.Search search;
+        // schedule which may end the run before its deadline, null if there is none
+        private BidScheduler.Schedule schedule;
+        private final EliteArchive elites = new EliteArchive();
+        private ChainSettings settings = new ChainSettings();
+
+        private Chain(State state, Random random, Migration migration, double maxTemperature) {
+            this.state = state;
+            this.random = random;
+            this.migration = migration;
+            this.maxTemperature = maxTemperature;
+            this.temperature = maxTemperature;
+            this.cost = state.getCost();
         }
 
         /**
-         * Generate the plan for each vehicle from the state
-         *
-         * @param vehicles
-         * @return The plan for each vehicle
+         * @param budget number of iterations to run regardless of the time, 0 to run until the deadline
          */
-        public List<Plan> getPlans(List<Vehicle> vehicles, TaskSet tasks) {
-            ArrayList<Plan> plans = new ArrayList<>();
-
-            // Generate a plan for each vehicle
-            vehicles.forEach(vehicle -> {
+        private void run(long start, long timeout, long deadline, long migrationInterval, long budget) {
+            long nextMigration = start + migrationInterval;
+            long nextReport = start + BidScheduler.REPORT_INTERVAL;
+            double best = cost;
+            long improved = 0;
+            // the temperature decreases from coolTemperature at coolStart over coolLength, counted in iterations
+            // for bounded runs and in ms otherwise
+            long coolStart = budget > 0 ? 0 : start;
+            long coolLength = budget > 0 ? budget : timeout;
+            double coolTemperature = settings.metropolis ? calibrate() * maxTemperature : maxTemperature;
+            double startTemperature = coolTemperature;
+
+            while (!cancelled) {
+                long time = System.currentTimeMillis();
+                if (budget > 0 ? iterations >= budget : time >= deadline) break;
+
+                iterations++;
+                boolean sampled = search != null && iterations % Telemetry.SAMPLE_INTERVAL == 0;
+                long sampleStart = sampled ? Telemetry.cpuNanos() : 0;
+
+                if (settings.ruinRate > 0 && random.nextDouble() < settings.ruinRate) {
+                    State recreated = state.clone();
+                    recreated.ruinAndRecreate(random, settings.maxRemoved);
+                    double delta = recreated.getCost() - cost;
+
+                    boolean accepted = accepts(delta);
+                    if (accepted) {
+                        if (delta >= 0) elites.offer(state, cost);
+                        state = recreated;
+                        cost = recreated.getCost();
+                        if (cost < best) {
+                            best = cost;
+                            improved = iterations;
+                        }
+                    }
 
-                System.out.println("planning vehicle");
+                    if (search != null) {
+                        search.ruin(accepted, accepted && delta > 0, cost);
+                        if (sampled) search.sampleRuin(Telemetry.cpuNanos() - sampleStart);
+                    }
+                } else {
+                    List<Move> neighbours = state.chooseNeighbours(random);
+                    long generated = sampled ? Telemetry.cpuNanos() : 0;
+                    Move candidate = localChoice(neighbours);
+
+                    boolean accepted = candidate != null && accepts(candidate.delta);
+                    if (accepted) {
+                        // leaving a state other than by a descent, the best states visited are all offered here
+                        if (candidate.delta >= 0) elites.offer(state, cost);
+                        state.apply(candidate);
+                        cost = state.getCost();
+                        if (cost < best) {
+                            best = cost;
+                            improved = iterations;
+                        }
+                    }
 
-                if (!firstTasks.containsKey(vehicle)) {
-                    System.err.println("Computing plan on adversary is not supported");
-                    return;
+                    if (search != null) {
+                        search.iteration(neighbours.size(), accepted, accepted && candidate.delta > 0, cost);
+                        if (sampled) search.sample(generated - sampleStart, Telemetry.cpuNanos() - generated, time - start);
+                    }
                 }
 
-                Plan plan = new Plan(vehicle.homeCity());
-                ConcreteTask current = firstTasks.get(vehicle);
-
-                if (current != null) {
-
-                    // Append moves actions until the first pickup
-                    vehicle.homeCity().pathTo(current.getCity()).forEach(plan::appendMove);
-
-                    int fid = current.task.id;
-                    Task first = tasks.stream().filter(t -> t.id == fid).findFirst().orElse(current.task);
-                    // Append first pickup
-                    plan.appendPickup(first);
+                long clock = budget > 0 ? iterations : time;
+                double progress = (clock - coolStart) / (double) coolLength;
+                temperature = settings.metropolis
+                        ? coolTemperature * Math.pow(FINAL_TEMPERATURE_RATIO, progress)
+                        : coolTemperature * (1 - progress);
+
+                // a stalled run is given a new, shorter schedule from a higher temperature until its end
+                if (settings.metropolis && settings.reheatAfter > 0 && iterations - improved > settings.reheatAfter) {
+                    coolTemperature = Math.max(temperature, startTemperature * REHEAT_RATIO);
+                    coolStart = clock;
+                    coolLength = Math.max(1, (budget > 0 ? budget : deadline) - clock);
+                    improved = iterations;
+                }
 
+                // a settled run cools down from its current temperature until its new end
+                if (schedule != null && time >= nextReport) {
+                    long end = schedule.report(time, best);
+                    if (end < deadline) {
+                        deadline = end;
+                        coolStart = time;
+                        coolLength = Math.max(1, end - time);
+                        coolTemperature = temperature;
+                    }
+                    nextReport = time + BidScheduler.REPORT_INTERVAL;
+                }
 
-                    // Then between each task, append moves and the task
-                    while (nextTask.get(current) != null) {
-                        ConcreteTask next = nextTask.get(current);
-                        Topology.City nextCity = next.getCity();
-                        current.getCity().pathTo(nextCity).forEach(plan::appendMove);
+                if (migration != null && time >= nextMigration) {
+                    State elite = migration.exchange(state, cost);
+                    if (elite != null) {
+                        elites.offer(state, cost);
+                        state = elite;
+                        cost = elite.getCost();
+                        if (cost < best) best = cost;
+                    }
+                    nextMigration = time + migrationInterval;
+                }
+            }
 
-                        int id = next.task.id;
-                        Task task = tasks.stream().filter(t -> t.id == id).findFirst().orElse(next.task);
+            // drop the rounding errors accumulated by the cost deltas, then end on the best state visited
+            state.refreshCosts();
+            elites.offer(state, state.getCost());
+            elites.refreshCosts();
+            state = elites.best();
+            cost = state.getCost();
+            if (search != null) search.end(System.currentTimeMillis() - start, temperature, cost);
+        }
 
-                        if (next.action == ConcreteTask.Action.PICKUP) {
-                            plan.appendPickup(task);
-                        } else {
-                            plan.appendDelivery(task);
-                        }
+        private boolean accepts(double delta) {
+            if (delta < 0) return true;
+            if (!settings.metropolis) return random.nextDouble() <= temperature;
+            return temperature > 0 && random.nextDouble() < Math.exp(-delta / temperature);
+        }
 
-                        current = next;
+        /**
+         * @return the temperature at which the mean uphill move around the initial state is accepted with the
+         * initial acceptance probability
+         */
+        private double calibrate() {
+            double uphill = 0;
+            int count = 0;
+
+            for (int i = 0; i < CALIBRATION_SAMPLES; i++) {
+                for (Move move : state.chooseNeighbours(random)) {
+                    if (move.delta > 0) {
+                        uphill += move.delta;
+                        count++;
                     }
                 }
+            }
 
-                plans.add(plan);
-            });
-
-            return plans;
+            // a state without uphill moves around it has nothing to escape from
+            if (count == 0) return 0;
+            return -(uphill / count) / Math.log(settings.initialAcceptance);
         }
 
         /**
-         * Generate all the neighbors
+         * Return the best neighbor in term of the objective function
          *
-         * @return List of neighbors
+         * @param neighbours
+         * @return Move to the best neighbor, null if there is none
          */
-        public List<State> chooseNeighbours() {
-            List<State> neighbors = new ArrayList<>();
+        private Move localChoice(List<Move> neighbours) {
+            Move bestMove = null;
+            double bestCost = Double.POSITIVE_INFINITY;
 
-            // Get random vehicle
-            Vehicle vehicle;
-            Random random = new Random();
-            do {
-                List<Vehicle> keys = new ArrayList<>(firstTasks.keySet());
-                vehicle = keys.get(random.nextInt(keys.size()));
-            } while (firstTasks.get(vehicle) == null);
+            if (neighbours.isEmpty()) return null;
 
-            // Apply the change vehicle operator
-            for (Vehicle v : firstTasks.keySet()) {
-                if (vehicle == v) continue;
-                State neighbor = changeVehicle(vehicle, v);
-                if (Constraints.checkConstraints(neighbor)) {
-                    neighbors.add(neighbor);
-                }
+            if (random.nextDouble() <= (settings.metropolis ? RANDOM_CHOICE : temperature)) {
+                return neighbours.get(random.nextInt(neighbours.size()));
             }
 
-            // Apply the change task order operator
-            ConcreteTask current = firstTasks.get(vehicle);
+            for (Move move : neighbours) {
+                double cost = move.delta;
 
-            while (nextTask.get(current) != null) {
-                ConcreteTask other = nextTask.get(current);
-
-                do {
-                    if (current.isRelated(other)) break;
+                if (cost < bestCost || cost == bestCost && random.nextBoolean()) {
+                    bestCost = cost;
+                    bestMove = move;
+                }
+            }
 
+            return bestMove;
+        }
+    }
 
-                    // Only do a swap if it doesn't break a pickup/deliver relationship,
-                    // i.e. other is a delivery and gets moved before its pickup
-                    if (checkIfValidSwap(current, other)) {
-                        State neighbor = swapTasks(vehicle, current, other);
+    /**
+     * Improves a state on its own thread with successive annealing runs, each one restarting from the best
+     * state found so far
+     */
+    private static class BackgroundSearch implements Runnable {
+        private final Thread thread;
+        private final Random random;
+        private State best;
+        private double bestCost;
+        private volatile boolean halted;
+        private volatile Chain chain;
+        private final ChainSettings settings;
+
+        private BackgroundSearch(State state, Random random, ChainSettings settings) {
+            this.thread = new Thread(this, "background-search");
+            this.random = random;
+            this.settings = settings;
+            this.best = state;
+            this.bestCost = state.getCost();
+
+            thread.setDaemon(true);
+        }
 
-                        if (Constraints.checkConstraints(neighbor)) {
-                            neighbors.add(neighbor);
-                        }
-                    }
+        private void start() {
+            thread.start();
+        }
 
-                    other = nextTask.get(other);
-                } while (other != null);
+        @Override
+        public void run() {
+            while (!halted) {
+                long start = System.currentTimeMillis();
+                Chain current = new Chain(best.clone(), random, null, MAX_TEMP);
+                current.settings = settings;
+                chain = current;
 
-                current = nextTask.get(current);
-            }
+                // checked after publishing the chain so that halt() cannot miss it
+                if (halted) break;
 
+                current.run(start, BACKGROUND_SEGMENT, start + BACKGROUND_SEGMENT, 0, 0);
 
-            return neighbors;
+                if (current.cost < bestCost) {
+                    best = current.state;
+                    bestCost = current.cost;
+                }
+            }
         }
 
-        private State changeVehicle(Vehicle v1, Vehicle v2) {
-            State neighbor = this.clone();
+        /**
+         * Stops the search and waits for the thread to finish, the best state can be read afterwards
+         */
+        private void halt() {
+            halted = true;
 
-            // Remove the pickup, delivery and update times
-            ConcreteTask pickup = neighbor.firstTasks.get(v1);
-            ConcreteTask delivery = neighbor.removeFirstCouple(v1);
+            Chain current = chain;
+            if (current != null) current.cancelled = true;
 
-            // Add to new vehicle
-            ConcreteTask first = neighbor.firstTasks.get(v2);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            neighbor.firstTasks.put(v2, pickup);
-            neighbor.nextTask.put(pickup, delivery);
-            neighbor.nextTask.put(delivery, first);
+    /**
+     * Tuning of the annealing chains of a planner, set up before any search runs
+     */
+    private static class ChainSettings {
+        // share of the iterations doing a ruin-and-recreate step, and tasks removed by one at most
+        private double ruinRate;
+        private int maxRemoved = 2;
+        // Metropolis acceptance instead of the linear one, with its schedule
+        private boolean metropolis;
+        private double initialAcceptance;
+        private int reheatAfter;
+    }
 
-            return neighbor;
+    /**
+     * Positions of the pickup and the delivery of a task inserted in a route, with the cost it adds
+     */
+    private static class Insertion {
+        private final int vehicle;
+        // slots after which the pickup and the delivery go, -1 for the head of the route
+        private final int pickupAfter;
+        private final int deliveryAfter;
+        private final double cost;
+
+        private Insertion(int vehicle, int pickupAfter, int deliveryAfter, double cost) {
+            this.vehicle = vehicle;
+            this.pickupAfter = pickupAfter;
+            this.deliveryAfter = deliveryAfter;
+            this.cost = cost;
         }
 
-        // Remove first pickup and its delivery
-        private ConcreteTask removeFirstCouple(Vehicle vehicle) {
-            // Remove pickup
-            ConcreteTask pickup = firstTasks.get(vehicle);
-
-            // Find the delivery times
-            ConcreteTask prev = pickup;
-            while (!pickup.isRelated(nextTask.get(prev)) && nextTask.get(prev) != null) {
-                // Advance
-                prev = nextTask.get(prev);
-            }
+        private static Insertion cheapest(Insertion best, int vehicle, int pickupAfter, int deliveryAfter, double cost) {
+            return best != null && best.cost <= cost ? best : new Insertion(vehicle, pickupAfter, deliveryAfter, cost);
+        }
+    }
 
+    /**
+     * The best distinct states visited by a search, sorted by cost and told apart by their hash
+     */
+    private static class EliteArchive {
+        private final List<State> states = new ArrayList<>(ELITE_SIZE + 1);
 
-            ConcreteTask delivery = nextTask.get(prev);
+        /**
+         * Keeps a copy of the state if it is among the best ones
+         */
+        private void offer(State state, double cost) {
+            if (accepts(state, cost)) insert(state.clone());
+        }
 
-            // Remove pickup
-            if (delivery == nextTask.get(pickup)) {
-                firstTasks.put(vehicle, nextTask.get(delivery));
-            } else {
-                firstTasks.put(vehicle, nextTask.get(pickup));
+        /**
+         * Takes the states of another archive which are among the best ones
+         */
+        private void merge(EliteArchive other) {
+            for (State state : other.states) {
+                if (accepts(state, state.getCost())) insert(state);
             }
-
-            // Remove delivery
-            nextTask.put(prev, nextTask.get(delivery));
-            return delivery;
         }
 
-        private boolean checkIfValidSwap(ConcreteTask task1, ConcreteTask task2) {
-            if (task2.action == ConcreteTask.Action.PICKUP) return true;
-            ConcreteTask current = nextTask.get(task1);
-
-            do {
-                if (current.isRelated(task2)) return false;
-                if (current == task2) return true;
-                current = nextTask.get(current);
-            } while (current != null);
+        private boolean accepts(State state, double cost) {
+            if (states.size() == ELITE_SIZE && cost >= states.get(ELITE_SIZE - 1).getCost()) return false;
 
+            for (State elite : states) {
+                if (elite.hash() == state.hash()) return false;
+            }
             return true;
         }
 
-        private State swapTasks(Vehicle v, ConcreteTask task1, ConcreteTask task2) {
-            State neighbor = this.clone();
+        private void insert(State state) {
+            int i = states.size();
+            while (i > 0 && states.get(i - 1).getCost() > state.getCost()) i--;
+            states.add(i, state);
+            if (states.size() > ELITE_SIZE) states.remove(ELITE_SIZE);
+        }
 
-            // Get parents
-            ConcreteTask parent1 = null;
-            ConcreteTask parent2 = null;
-            for (Map.Entry<ConcreteTask, ConcreteTask> map : nextTask.entrySet()) {
-                if (task1 == map.getValue()) parent1 = map.getKey();
-                if (task2 == map.getValue()) parent2 = map.getKey() == task1 ? task2 : map.getKey();
-            }
+        private void refreshCosts() {
+            states.forEach(State::refreshCosts);
+            states.sort(Comparator.comparingDouble(State::getCost));
+        }
 
-            // Get children
-            ConcreteTask child1 = nextTask.get(task1) == task2 ? task1 : nextTask.get(task1);
-            ConcreteTask child2 = nextTask.get(task2);
+        private State best() {
+            return states.get(0);
+        }
+    }
+
+    /**
+     * Best state published by the chains of a search, used to restart the chains lagging behind
+     */
+    private static class Migration {
+        private State elite;
+        private double eliteCost = Double.POSITIVE_INFINITY;
+
+        /**
+         * Publishes the state of a chain if it is the best one so far
+         *
+         * @return a copy of the best state if it is better than the given one, null otherwise
+         */
+        private synchronized State exchange(State state, double cost) {
+            if (cost < eliteCost) {
+                elite = state.clone();
+                eliteCost = cost;
+                return null;
+            }
+
+            return cost > eliteCost ? elite.clone() : null;
+        }
+    }
+
+    /**
+     * Interns tasks into dense slot ids. The pickup of the i-th interned task lives in slot 2i and its delivery
+     * in slot 2i + 1, so the partner of a slot is always slot ^ 1.
+     * <p>
+     * The slots can be shared by several planners, so that every task is interned once for all of them: interning
+     * is synchronized, and a slot is then read without locking by the states which got it from {@link #intern}.
+     */
+    public static class TaskSlots {
+        private final TopologyIndex topology;
+        private final HashMap<Integer, Integer> index = new HashMap<>();
+        private Table table = new Table(new Task[16], new int[32]);
+        private int size = 0;
+
+        public TaskSlots(TopologyIndex topology) {
+            this.topology = topology;
+        }
+
+        /**
+         * @param task the task to intern
+         * @return the index of the task, its pickup slot being twice this value
+         */
+        public synchronized int intern(Task task) {
+            Integer known = index.get(task.id);
+            if (known != null) return known;
+
+            Task[] tasks = table.tasks;
+            int[] cities = table.cities;
+            boolean grown = size == tasks.length;
+            if (grown) {
+                tasks = Arrays.copyOf(tasks, size * 2);
+                cities = Arrays.copyOf(cities, size * 4);
+            }
+
+            tasks[size] = task;
+            cities[2 * size] = task.pickupCity.id;
+            cities[2 * size + 1] = task.deliveryCity.id;
+            // a grown table is published once filled, its final fields making its content visible to every thread
+            if (grown) table = new Table(tasks, cities);
+            index.put(task.id, size);
+
+            return size++;
+        }
+
+        public synchronized int slotCount() {
+            return 2 * size;
+        }
+
+        public Task task(int slot) {
+            return table.tasks[slot >> 1];
+        }
+
+        public Topology.City city(int slot) {
+            return topology.city(table.cities[slot]);
+        }
+
+        public int cityId(int slot) {
+            return table.cities[slot];
+        }
+
+        public TopologyIndex topology() {
+            return topology;
+        }
+
+        /**
+         * @return the weight loaded on the vehicle at this slot, negative for deliveries
+         */
+        public int loadChange(int slot) {
+            int weight = table.tasks[slot >> 1].weight;
+            return isPickup(slot) ? weight : -weight;
+        }
+
+        public static boolean isPickup(int slot) {
+            return (slot & 1) == 0;
+        }
+
+        private static class Table {
+            private final Task[] tasks;
+            private final int[] cities;
+
+            private Table(Task[] tasks, int[] cities) {
+                this.tasks = tasks;
+                this.cities = cities;
+            }
+        }
+    }
+
+    /**
+     * A solution stored as doubly linked routes over task slots: {@code head} holds the first slot of each
+     * vehicle, {@code next} and {@code prev} the neighbours of each slot, -1 marking the ends of a route.
+     * <p>
+     * The cost of each route is cached and kept up to date by the operators from the edges they touch.
+     */
+    public static class State {
+        // salt of the keys of the edges leaving the start of a route
+        private static final long ROUTE_START = 0x5DEECE66DL << 24;
+        private static final int[] NO_MARKS = new int[0];
+
+        private final TaskSlots slots;
+        private final TopologyIndex topology;
+        private Vehicle[] vehicles;
+        private int[] home;
+        private int[] head;
+        private int[] next;
+        private int[] prev;
+        private double[] routeCost;
+        private double cost;
+        // load profile of each route, built on demand and dropped whenever the route changes
+        private LoadProfile[] profiles;
+        // Zobrist style hash of the routes, the xor of the keys of all their edges, kept up to date by link
+        private long hash;
+        // marks over the slots used while generating neighbours, a slot being marked when it holds the current
+        // mark, only touched by the thread searching the state and never copied
+        private int[] marks = NO_MARKS;
+        private int mark;
+
+        private State(TaskSlots slots, Vehicle[] vehicles, int[] home, int[] head, int[] next, int[] prev, double[] routeCost, double cost,
+                      LoadProfile[] profiles, long hash) {
+            this.slots = slots;
+            this.topology = slots.topology();
+            this.vehicles = vehicles;
+            this.home = home;
+            this.head = head;
+            this.next = next;
+            this.prev = prev;
+            this.routeCost = routeCost;
+            this.cost = cost;
+            this.profiles = profiles;
+            this.hash = hash;
+        }
+
+        public State(TaskSlots slots, List<? extends Vehicle> vehicles) {
+            this.slots = slots;
+            this.topology = slots.topology();
+            this.vehicles = vehicles.toArray(new Vehicle[0]);
+            this.home = homeCities(this.vehicles);
+            this.head = new int[this.vehicles.length];
+            this.next = new int[0];
+            this.prev = new int[0];
+            this.routeCost = new double[this.vehicles.length];
+            this.cost = 0;
+            this.profiles = new LoadProfile[this.vehicles.length];
+
+            Arrays.fill(head, -1);
+        }
+
+        /**
+         * Inserts the task where it adds the least to the cost, among all the feasible positions of its pickup
+         * and delivery in the routes of all the vehicles
+         */
+        public void addTask(Task task) {
+            try {
+                if (Arrays.stream(vehicles).noneMatch(v -> v.capacity() >= task.weight)) {
+                    throw new Exception("No vehicle can handle the task");
+                }
+
+                int pickup = 2 * slots.intern(task);
+                ensureCapacity(slots.slotCount());
+                insertCheapest(pickup);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Removes a few tasks, related by the distance between their cities, by their route or at random, then
+         * inserts them back either one at a time in a random order at their cheapest position, or by regret-2:
+         * first the task losing the most if it did not get its best vehicle
+         *
+         * @param maxRemoved maximum number of tasks removed, at least 2
+         */
+        public void ruinAndRecreate(Random random, int maxRemoved) {
+            // owner of each assigned pickup, and the assigned pickups
+            int[] owner = new int[next.length];
+            List<Integer> pickups = new ArrayList<>();
+            for (int v = 0; v < vehicles.length; v++) {
+                for (int slot = head[v]; slot >= 0; slot = next[slot]) {
+                    if (!TaskSlots.isPickup(slot)) continue;
+                    owner[slot] = v;
+                    pickups.add(slot);
+                }
+            }
+            if (pickups.size() < 2) return;
+
+            int count = 2 + random.nextInt(Math.min(maxRemoved, pickups.size()) - 1);
+            List<Integer> removed;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    int seed = pickups.get(random.nextInt(pickups.size()));
+                    pickups.sort(Comparator.comparingDouble(pickup -> relatedness(seed, pickup)));
+                    removed = new ArrayList<>(pickups.subList(0, count));
+                    break;
+                case 1:
+                    int vehicle = owner[pickups.get(random.nextInt(pickups.size()))];
+                    List<Integer> route = new ArrayList<>();
+                    for (int pickup : pickups) {
+                        if (owner[pickup] == vehicle) route.add(pickup);
+                    }
+                    int first = random.nextInt(route.size());
+                    removed = new ArrayList<>(route.subList(first, Math.min(route.size(), first + count)));
+                    break;
+                default:
+                    Collections.shuffle(pickups, random);
+                    removed = new ArrayList<>(pickups.subList(0, count));
+            }
+
+            for (int pickup : removed) {
+                removeCouple(owner[pickup], pickup);
+            }
+
+            if (random.nextBoolean()) {
+                insertByRegret(removed);
+            } else {
+                Collections.shuffle(removed, random);
+                removed.forEach(this::insertCheapest);
+            }
+        }
+
+        // distance between the pickups plus distance between the deliveries of two tasks
+        private double relatedness(int pickup1, int pickup2) {
+            return topology.distance(slots.cityId(pickup1), slots.cityId(pickup2))
+                    + topology.distance(slots.cityId(pickup1 ^ 1), slots.cityId(pickup2 ^ 1));
+        }
+
+        /**
+         * Inserts an unassigned task at its cheapest position among all the vehicles
+         */
+        private void insertCheapest(int pickup) {
+            Insertion best = null;
+            for (int v = 0; v < vehicles.length; v++) {
+                best = cheapestInsertion(v, pickup, best);
+            }
+            insert(best, pickup);
+        }
+
+        /**
+         * Inserts unassigned tasks one at a time, each time the one with the largest difference between its
+         * cheapest insertion in a second vehicle and its cheapest insertion overall
+         */
+        private void insertByRegret(List<Integer> pickups) {
+            List<Integer> remaining = new ArrayList<>(pickups);
+
+            while (!remaining.isEmpty()) {
+                int chosen = -1;
+                Insertion chosenInsertion = null;
+                double maxRegret = Double.NEGATIVE_INFINITY;
+
+                for (int i = 0; i < remaining.size(); i++) {
+                    Insertion best = null;
+                    double second = Double.POSITIVE_INFINITY;
+
+                    for (int v = 0; v < vehicles.length; v++) {
+                        Insertion insertion = cheapestInsertion(v, remaining.get(i), null);
+                        if (insertion == null) continue;
+
+                        if (best == null || insertion.cost < best.cost) {
+                            if (best != null) second = best.cost;
+                            best = insertion;
+                        } else if (insertion.cost < second) {
+                            second = insertion.cost;
+                        }
+                    }
+
+                    // a task fitting a single vehicle has an infinite regret
+                    double regret = second - best.cost;
+                    if (regret > maxRegret) {
+                        maxRegret = regret;
+                        chosen = i;
+                        chosenInsertion = best;
+                    }
+                }
+
+                insert(chosenInsertion, remaining.remove(chosen));
+            }
+        }
+
+        private void insert(Insertion insertion, int pickup) {
+            insertAfter(insertion.vehicle, insertion.pickupAfter, pickup);
+            insertAfter(insertion.vehicle, insertion.deliveryAfter, pickup ^ 1);
+        }
+
+        /**
+         * Finds the cheapest feasible insertion of an unassigned task in the route of a vehicle in a single pass:
+         * the delivery is tried in every gap of the route, together with its pickup in the same gap or in the
+         * cheapest gap before it from which the vehicle can carry the task all along
+         *
+         * @param best the cheapest insertion found so far, null if there is none
+         * @return the cheapest of the insertions found and best
+         */
+        private Insertion cheapestInsertion(int vehicle, int pickup, Insertion best) {
+            int delivery = pickup ^ 1;
+            int weight = slots.loadChange(pickup);
+            int capacity = vehicles[vehicle].capacity();
+            double costPerKm = vehicles[vehicle].costPerKm();
+
+            // cheapest gap for the pickup since the load last left no room for the task
+            double pickupCost = Double.POSITIVE_INFINITY;
+            int pickupAfter = -1;
+            int load = 0;
+
+            for (int before = -1, after = head[vehicle]; ; before = after, after = next[after]) {
+                if (load + weight > capacity) {
+                    pickupCost = Double.POSITIVE_INFINITY;
+                } else {
+                    double removed = distance(vehicle, before, after);
+
+                    double together = distance(vehicle, before, pickup) + distance(vehicle, pickup, delivery)
+                            + distance(vehicle, delivery, after) - removed;
+                    best = Insertion.cheapest(best, vehicle, before, pickup, together * costPerKm);
+
+                    if (pickupCost < Double.POSITIVE_INFINITY) {
+                        double apart = pickupCost + distance(vehicle, before, delivery) + distance(vehicle, delivery, after) - removed;
+                        best = Insertion.cheapest(best, vehicle, pickupAfter, before, apart * costPerKm);
+                    }
+
+                    double here = distance(vehicle, before, pickup) + distance(vehicle, pickup, after) - removed;
+                    if (here < pickupCost) {
+                        pickupCost = here;
+                        pickupAfter = before;
+                    }
+                }
+
+                if (after < 0) return best;
+                load += slots.loadChange(after);
+            }
+        }
+
+        /**
+         * Grows the slot arrays so that they cover the given number of slots, new slots being unassigned
+         */
+        private void ensureCapacity(int slotCount) {
+            if (next.length >= slotCount) return;
+
+            int from = next.length;
+            next = Arrays.copyOf(next, slotCount);
+            prev = Arrays.copyOf(prev, slotCount);
+            Arrays.fill(next, from, slotCount, -1);
+            Arrays.fill(prev, from, slotCount, -1);
+        }
+
+        public State clone() {
+            int[] head = new int[this.head.length];
+            int[] next = new int[this.next.length];
+            int[] prev = new int[this.prev.length];
+            double[] routeCost = new double[this.routeCost.length];
+
+            // vehicles and home cities are only replaced, never modified in place, so they can be shared
+            System.arraycopy(this.head, 0, head, 0, head.length);
+            System.arraycopy(this.next, 0, next, 0, next.length);
+            System.arraycopy(this.prev, 0, prev, 0, prev.length);
+            System.arraycopy(this.routeCost, 0, routeCost, 0, routeCost.length);
+
+            // profiles are immutable, the clone drops its own copies as its routes change
+            return new State(slots, vehicles, home, head, next, prev, routeCost, cost, profiles.clone(), hash);
+        }
+
+        public Vehicle[] vehicles() {
+            return vehicles;
+        }
+
+        /**
+         * Puts a task in place of another one going between the same cities, the cost is unchanged
+         *
+         * @param replaced the task currently in the state
+         * @param task     its replacement, not yet in the state
+         */
+        public void replaceTask(Task replaced, Task task) {
+            int from = 2 * slots.intern(replaced);
+            int to = 2 * slots.intern(task);
+            ensureCapacity(slots.slotCount());
+
+            moveSlot(from, to);
+            moveSlot(from ^ 1, to ^ 1);
+            Arrays.fill(profiles, null);
+            hash = computeHash();
+        }
+
+        private void moveSlot(int from, int to) {
+            int before = prev[from];
+            int after = next[from];
+
+            if (before < 0) {
+                for (int v = 0; v < vehicles.length; v++) {
+                    if (head[v] == from) head[v] = to;
+                }
+            } else {
+                next[before] = to;
+            }
+            if (after >= 0) prev[after] = to;
+
+            prev[to] = before;
+            next[to] = after;
+            prev[from] = -1;
+            next[from] = -1;
+        }
+
+        /**
+         * Drops the cached load profiles, so that the next checks build them again
+         */
+        void clearProfiles() {
+            Arrays.fill(profiles, null);
+        }
+
+        /**
+         * @return the load profile of the vehicle's current route
+         */
+        public LoadProfile loadProfile(int vehicle) {
+            if (profiles[vehicle] == null) profiles[vehicle] = new LoadProfile(this, vehicle);
+            return profiles[vehicle];
+        }
+
+        public int firstTask(int vehicle) {
+            return head[vehicle];
+        }
+
+        public Task task(int slot) {
+            return slots.task(slot);
+        }
+
+        /**
+         * Drops an idle vehicle from the solution
+         *
+         * @param vehicle the vehicle to remove, its route has to be empty
+         */
+        public void removeVehicle(Vehicle vehicle) {
+            int v = indexOf(vehicle);
+            if (v < 0) return;
+
+            Vehicle[] vehicles = new Vehicle[this.vehicles.length - 1];
+            int[] head = new int[this.head.length - 1];
+            double[] routeCost = new double[this.routeCost.length - 1];
+
+            System.arraycopy(this.vehicles, 0, vehicles, 0, v);
+            System.arraycopy(this.vehicles, v + 1, vehicles, v, vehicles.length - v);
+            System.arraycopy(this.head, 0, head, 0, v);
+            System.arraycopy(this.head, v + 1, head, v, head.length - v);
+            System.arraycopy(this.routeCost, 0, routeCost, 0, v);
+            System.arraycopy(this.routeCost, v + 1, routeCost, v, routeCost.length - v);
+
+            this.vehicles = vehicles;
+            this.head = head;
+            this.routeCost = routeCost;
+            this.profiles = new LoadProfile[vehicles.length];
+            this.hash = computeHash();
+            refreshCosts();
+        }
+
+        private int indexOf(Vehicle vehicle) {
+            for (int v = 0; v < vehicles.length; v++) {
+                if (vehicles[v].equals(vehicle)) return v;
+            }
+            return -1;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+
+        /**
+         * @return a hash of the routes, the same for states holding the same tasks in the same order in the same
+         * vehicles whatever the order in which the tasks were interned
+         */
+        public long hash() {
+            return hash;
+        }
+
+        private long computeHash() {
+            long hash = 0;
+
+            for (int v = 0; v < vehicles.length; v++) {
+                hash ^= edgeKey(-1 - v, head[v]);
+                for (int slot = head[v]; slot >= 0; slot = next[slot]) {
+                    hash ^= edgeKey(slot, next[slot]);
+                }
+            }
+
+            return hash;
+        }
+
+        /**
+         * @return the key of the edge between two slots, an origin -1 - v standing for the start of the route of
+         * vehicle v and no destination for the end of a route, which has no key
+         */
+        private long edgeKey(int from, int to) {
+            if (to < 0) return 0;
+
+            long origin = from < 0 ? ROUTE_START ^ (-1 - from) : slotKey(from);
+            return mix(mix(origin) ^ slotKey(to));
+        }
+
+        // slots are told apart by their task rather than their index, which depends on the interning order
+        private long slotKey(int slot) {
+            return 2L * slots.task(slot).id + (slot & 1);
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * Recomputes all route costs from scratch, needed whenever a vehicle's home city has been moved
+         */
+        public void refreshCosts() {
+            home = homeCities(vehicles);
+            cost = 0;
+
+            for (int v = 0; v < vehicles.length; v++) {
+                double distance = 0;
+
+                for (int current = head[v]; current >= 0; current = next[current]) {
+                    distance += distance(v, prev[current], current);
+                }
+
+                routeCost[v] = distance * vehicles[v].costPerKm();
+                cost += routeCost[v];
+            }
+        }
+
+        /**
+         * @return the distance of the edge between two slots of the route of vehicle, -1 standing for the
+         * vehicle's home city as origin and for the end of the route as destination
+         */
+        private double distance(int vehicle, int from, int to) {
+            if (to < 0) return 0;
+            return topology.distance(from < 0 ? home[vehicle] : slots.cityId(from), slots.cityId(to));
+        }
+
+        private static int[] homeCities(Vehicle[] vehicles) {
+            int[] home = new int[vehicles.length];
+            for (int v = 0; v < vehicles.length; v++) {
+                home[v] = vehicles[v].homeCity().id;
+            }
+            return home;
+        }
+
+        private void addRouteCost(int vehicle, double distance) {
+            double delta = distance * vehicles[vehicle].costPerKm();
+            routeCost[vehicle] += delta;
+            cost += delta;
+        }
+
+        /**
+         * Generate the plan for each vehicle from the state
+         *
+         * @param vehicles
+         * @return The plan for each vehicle
+         */
+        public List<Plan> getPlans(List<Vehicle> vehicles, TaskSet tasks) {
+            ArrayList<Plan> plans = new ArrayList<>();
+            // the tasks handed to the plans must be the ones of the task set, looked up by id
+            HashMap<Integer, Task> byId = new HashMap<>();
+            tasks.forEach(task -> byId.put(task.id, task));
+
+            // Generate a plan for each vehicle
+            vehicles.forEach(vehicle -> {
+
+                System.out.println("planning vehicle");
+
+                int v = indexOf(vehicle);
+                if (v < 0) {
+                    System.err.println("Computing plan on adversary is not supported");
+                    return;
+                }
+
+                Plan plan = new Plan(vehicle.homeCity());
+                Topology.City currentCity = vehicle.homeCity();
+
+                // Between each task, append moves and the task
+                for (int current = head[v]; current >= 0; current = next[current]) {
+                    Topology.City nextCity = slots.city(current);
+                    topology.appendPath(plan, currentCity, nextCity);
+
+                    Task task = byId.getOrDefault(slots.task(current).id, slots.task(current));
+
+                    if (TaskSlots.isPickup(current)) {
+                        plan.appendPickup(task);
+                    } else {
+                        plan.appendDelivery(task);
+                    }
+
+                    currentCity = nextCity;
+                }
+
+                plans.add(plan);
+            });
+
+            return plans;
+        }
+
+        /**
+         * Generate all the valid neighbors of the state as moves, without building them
+         *
+         * @param random source of randomness for the choice of the vehicle
+         * @return List of moves leading to the neighbors
+         */
+        public List<Move> chooseNeighbours(Random random) {
+            List<Move> neighbors = new ArrayList<>();
+
+            // Get random vehicle
+            int vehicle;
+            do {
+                vehicle = random.nextInt(vehicles.length);
+            } while (head[vehicle] < 0);
+
+            // Apply the change vehicle operator
+            for (int v = 0; v < vehicles.length; v++) {
+                if (vehicle == v) continue;
+                Move move = Move.changeVehicle(vehicle, v, changeVehicleDelta(vehicle, v));
+                if (Constraints.checkMove(this, move)) {
+                    neighbors.add(move);
+                }
+            }
+
+            // Apply the change task order operator, the pickups met after current are marked, and the positions
+            // of both tasks in the route give the loads the swap shifts
+            LoadProfile profile = loadProfile(vehicle);
+            int i = 0;
+            for (int current = head[vehicle]; next[current] >= 0; current = next[current], i++) {
+                int mark = newMark();
+                int j = i + 1;
+                for (int other = next[current]; other >= 0; other = next[other], j++) {
+                    if (isRelated(current, other)) break;
+
+                    // Only do a swap if it doesn't break a pickup/deliver relationship,
+                    // i.e. other is a delivery whose pickup lies between both tasks
+                    if (TaskSlots.isPickup(other)) {
+                        marks[other] = mark;
+                    } else if (marks[other ^ 1] == mark) {
+                        continue;
+                    }
+
+                    if (Constraints.checkSwapWeight(this, profile, vehicle, current, other, i, j)) {
+                        neighbors.add(Move.swap(vehicle, current, other, swapDelta(vehicle, current, other) * vehicles[vehicle].costPerKm()));
+                    }
+                }
+            }
+
+            addRelocations(vehicle, random, neighbors);
+            addReversals(vehicle, random, neighbors);
+
+            return neighbors;
+        }
+
+        /**
+         * Adds the moves relocating a random segment of one to {@link #MAX_SEGMENT} stops of the route anywhere
+         * else in the same route. The target moves away from the segment until it passes the other end of a task
+         * of the segment or a load shifted by the segment's net load no longer fits.
+         */
+        private void addRelocations(int vehicle, Random random, List<Move> neighbours) {
+            LoadProfile profile = loadProfile(vehicle);
+            int capacity = vehicles[vehicle].capacity();
+            double costPerKm = vehicles[vehicle].costPerKm();
+
+            int start = random.nextInt(profile.length());
+            int end = start + random.nextInt(Math.min(MAX_SEGMENT, profile.length() - start));
+
+            int[] segment = new int[end - start + 1];
+            segment[0] = head[vehicle];
+            for (int i = 0; i < start; i++) segment[0] = next[segment[0]];
+            for (int i = 1; i < segment.length; i++) segment[i] = next[segment[i - 1]];
+
+            int first = segment[0];
+            int last = segment[segment.length - 1];
+            int before = prev[first];
+            int following = next[last];
+
+            int loadBefore = start > 0 ? profile.load(start - 1) : 0;
+            int segmentMax = profile.maxLoad(start, end);
+            int net = profile.load(end) - loadBefore;
+            double removed = distance(vehicle, before, following) - distance(vehicle, before, first) - distance(vehicle, last, following);
+
+            // forwards, the stops passed over carry the segment's net load less
+            int passedMax = Integer.MIN_VALUE;
+            int position = end + 1;
+            for (int after = following; after >= 0; after = next[after], position++) {
+                if (!TaskSlots.isPickup(after) && contains(segment, after ^ 1)) break;
+                passedMax = Math.max(passedMax, profile.load(position));
+                if (passedMax - net > capacity) break;
+                if (profile.load(position) - profile.load(end) + segmentMax > capacity) continue;
+
+                int afterNext = next[after];
+                double delta = removed + distance(vehicle, after, first) + distance(vehicle, last, afterNext) - distance(vehicle, after, afterNext);
+                neighbours.add(Move.relocate(vehicle, first, last, after, delta * costPerKm));
+            }
+
+            // backwards, they carry it more
+            passedMax = Integer.MIN_VALUE;
+            position = start - 1;
+            for (int passed = before; passed >= 0; passed = prev[passed], position--) {
+                if (TaskSlots.isPickup(passed) && contains(segment, passed ^ 1)) break;
+                passedMax = Math.max(passedMax, profile.load(position));
+                if (passedMax + net > capacity) break;
+
+                int after = prev[passed];
+                int loadAfter = position > 0 ? profile.load(position - 1) : 0;
+                if (loadAfter + segmentMax - loadBefore > capacity) continue;
+
+                double delta = removed + distance(vehicle, after, first) + distance(vehicle, last, passed) - distance(vehicle, after, passed);
+                neighbours.add(Move.relocate(vehicle, first, last, after, delta * costPerKm));
+            }
+        }
+
+        /**
+         * @return a mark held by no slot, the marks being grown to the slots when needed
+         */
+        private int newMark() {
+            if (marks.length < next.length) {
+                marks = new int[next.length];
+                mark = 0;
+            } else if (mark == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                mark = 0;
+            }
+            return ++mark;
+        }
+
+        private static boolean contains(int[] segment, int slot) {
+            for (int s : segment) {
+                if (s == slot) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Adds the moves reversing a segment of the route starting at a random stop, up to the first segment
+         * holding both ends of a task. Distances being symmetric, only the two edges around the segment change.
+         */
+        private void addReversals(int vehicle, Random random, List<Move> neighbours) {
+            LoadProfile profile = loadProfile(vehicle);
+            if (profile.length() < 2) return;
+
+            int capacity = vehicles[vehicle].capacity();
+            double costPerKm = vehicles[vehicle].costPerKm();
+
+            int start = random.nextInt(profile.length() - 1);
+            int first = head[vehicle];
+            for (int i = 0; i < start; i++) first = next[first];
+            int before = prev[first];
+
+            // reversed, the stop at position m carries loadBefore + load(last) - load(m - 1), the largest load
+            // comes with the smallest load over the positions start - 1 to the one before last
+            int loadBefore = start > 0 ? profile.load(start - 1) : 0;
+            int minLoad = loadBefore;
+            int position = start + 1;
+            int mark = newMark();
+
+            for (int last = next[first]; last >= 0; last = next[last], position++) {
+                int previous = prev[last];
+                if (TaskSlots.isPickup(previous)) marks[previous] = mark;
+                if (!TaskSlots.isPickup(last) && marks[last ^ 1] == mark) break;
+
+                minLoad = Math.min(minLoad, profile.load(position - 1));
+                if (loadBefore + profile.load(position) - minLoad > capacity) continue;
+
+                int following = next[last];
+                double delta = distance(vehicle, before, last) + distance(vehicle, first, following)
+                        - distance(vehicle, before, first) - distance(vehicle, last, following);
+                neighbours.add(Move.reverse(vehicle, first, last, delta * costPerKm));
+            }
+        }
+
+        /**
+         * Applies a move generated from this state
+         *
+         * @param move the move to apply
+         */
+        public void apply(Move move) {
+            switch (move.type) {
+                case CHANGE_VEHICLE:
+                    // Remove the pickup and its delivery, then add them to the new vehicle
+                    insertCouple(move.target, removeFirstCouple(move.vehicle));
+                    break;
+                case SWAP:
+                    swapTasks(move.vehicle, move.task1, move.task2);
+                    break;
+                case RELOCATE:
+                    relocate(move.vehicle, move.task1, move.task2, move.after);
+                    break;
+                case REVERSE:
+                    reverse(move.vehicle, move.task1, move.task2);
+                    break;
+            }
+        }
+
+        /**
+         * @return the cost difference of moving the first task of v1 to the head of v2
+         */
+        private double changeVehicleDelta(int v1, int v2) {
+            int pickup = head[v1];
+            int delivery = pickup ^ 1;
+            int afterDelivery = next[delivery];
+            double removed;
+
+            if (next[pickup] == delivery) {
+                removed = distance(v1, -1, afterDelivery)
+                        - distance(v1, -1, pickup) - distance(v1, pickup, delivery) - distance(v1, delivery, afterDelivery);
+            } else {
+                int afterPickup = next[pickup];
+                int beforeDelivery = prev[delivery];
+
+                removed = distance(v1, -1, afterPickup) + distance(v1, beforeDelivery, afterDelivery)
+                        - distance(v1, -1, pickup) - distance(v1, pickup, afterPickup)
+                        - distance(v1, beforeDelivery, delivery) - distance(v1, delivery, afterDelivery);
+            }
+
+            int first = head[v2];
+            double added = distance(v2, -1, pickup) + distance(v2, pickup, delivery) + distance(v2, delivery, first)
+                    - distance(v2, -1, first);
+
+            return removed * vehicles[v1].costPerKm() + added * vehicles[v2].costPerKm();
+        }
+
+        // Remove first pickup and its delivery
+        private int removeFirstCouple(int vehicle) {
+            int pickup = head[vehicle];
+            removeCouple(vehicle, pickup);
+            return pickup;
+        }
+
+        private void removeCouple(int vehicle, int pickup) {
+            unlink(vehicle, pickup ^ 1);
+            unlink(vehicle, pickup);
+        }
+
+        // Add a pickup and its delivery at the head of the vehicle's route
+        private void insertCouple(int vehicle, int pickup) {
+            insertAfter(vehicle, -1, pickup);
+            insertAfter(vehicle, pickup, pickup ^ 1);
+        }
+
+        private void unlink(int vehicle, int slot) {
+            int from = prev[slot];
+            int to = next[slot];
+
+            addRouteCost(vehicle, distance(vehicle, from, to) - distance(vehicle, from, slot) - distance(vehicle, slot, to));
+
+            link(vehicle, from, to);
+            hash ^= edgeKey(slot, to);
+            next[slot] = -1;
+            prev[slot] = -1;
+        }
+
+        private void insertAfter(int vehicle, int after, int slot) {
+            int to = after < 0 ? head[vehicle] : next[after];
+
+            addRouteCost(vehicle, distance(vehicle, after, slot) + distance(vehicle, slot, to) - distance(vehicle, after, to));
+
+            link(vehicle, after, slot);
+            link(vehicle, slot, to);
+        }
+
+        private void link(int vehicle, int from, int to) {
+            profiles[vehicle] = null;
+
+            if (from < 0) {
+                hash ^= edgeKey(-1 - vehicle, head[vehicle]) ^ edgeKey(-1 - vehicle, to);
+                head[vehicle] = to;
+            } else {
+                hash ^= edgeKey(from, next[from]) ^ edgeKey(from, to);
+                next[from] = to;
+            }
+
+            if (to >= 0) prev[to] = from;
+        }
+
+        private static boolean isRelated(int slot, int other) {
+            return TaskSlots.isPickup(slot) && other == (slot ^ 1);
+        }
+
+        /**
+         * @return the distance difference of swapping task1 with the later task2 in the route of v,
+         * only the edges around both tasks change
+         */
+        private double swapDelta(int v, int task1, int task2) {
+            int parent1 = prev[task1];
+            int child2 = next[task2];
+
+            if (next[task1] == task2) {
+                return distance(v, parent1, task2) + distance(v, task2, task1) + distance(v, task1, child2)
+                        - distance(v, parent1, task1) - distance(v, task1, task2) - distance(v, task2, child2);
+            }
+
+            int child1 = next[task1];
+            int parent2 = prev[task2];
+
+            return distance(v, parent1, task2) + distance(v, task2, child1) + distance(v, parent2, task1) + distance(v, task1, child2)
+                    - distance(v, parent1, task1) - distance(v, task1, child1) - distance(v, parent2, task2) - distance(v, task2, child2);
+        }
+
+        private void swapTasks(int v, int task1, int task2) {
+            addRouteCost(v, swapDelta(v, task1, task2));
+
+            int parent1 = prev[task1];
+            int child2 = next[task2];
 
             // Swap
-            if (parent1 == null) {
-                neighbor.firstTasks.put(v, task2);
+            if (next[task1] == task2) {
+                link(v, parent1, task2);
+                link(v, task2, task1);
             } else {
-                neighbor.nextTask.put(parent1, task2);
+                int child1 = next[task1];
+                int parent2 = prev[task2];
+
+                link(v, parent1, task2);
+                link(v, task2, child1);
+                link(v, parent2, task1);
             }
-            neighbor.nextTask.put(parent2, task1);
-            neighbor.nextTask.put(task1, child2);
-            neighbor.nextTask.put(task2, child1);
+            link(v, task1, child2);
+        }
+
+        // Move the segment from first to last after the slot after, -1 for the head of the route
+        private void relocate(int v, int first, int last, int after) {
+            int before = prev[first];
+            int following = next[last];
+            int afterNext = after < 0 ? head[v] : next[after];
+
+            addRouteCost(v, distance(v, before, following) - distance(v, before, first) - distance(v, last, following)
+                    + distance(v, after, first) + distance(v, last, afterNext) - distance(v, after, afterNext));
+
+            link(v, before, following);
+            link(v, after, first);
+            link(v, last, afterNext);
+        }
 
-            return neighbor;
+        // Reverse the segment from first to last
+        private void reverse(int v, int first, int last) {
+            int before = prev[first];
+            int following = next[last];
+
+            addRouteCost(v, distance(v, before, last) + distance(v, first, following)
+                    - distance(v, before, first) - distance(v, last, following));
+
+            // walking back from the last slot, each link replaces the edge leaving its origin
+            int slot = last;
+            int previous = prev[last];
+            link(v, before, last);
+            while (slot != first) {
+                int beforePrevious = prev[previous];
+                link(v, slot, previous);
+                slot = previous;
+                previous = beforePrevious;
+            }
+            link(v, first, following);
         }
     }
 
-    public static class ConcreteTask {
-        public enum Action {PICKUP, DELIVERY}
+    /**
+     * A neighbour of a state described by the operator leading to it, so that it can be checked and scored
+     * without being built
+     */
+    public static class Move {
+        public enum Type {CHANGE_VEHICLE, SWAP, RELOCATE, REVERSE}
+
+        public final Type type;
+        public final int vehicle;
+        public final int target;
+        public final int task1;
+        public final int task2;
+        // slot after which a relocated segment goes, -1 for the head of the route
+        public final int after;
+        public final double delta;
+
+        private Move(Type type, int vehicle, int target, int task1, int task2, int after, double delta) {
+            this.type = type;
+            this.vehicle = vehicle;
+            this.target = target;
+            this.task1 = task1;
+            this.task2 = task2;
+            this.after = after;
+            this.delta = delta;
+        }
 
-        public Action action;
-        public Task task;
+        /**
+         * Moves the first task of a vehicle to the head of the target's route
+         */
+        public static Move changeVehicle(int vehicle, int target, double delta) {
+            return new Move(Type.CHANGE_VEHICLE, vehicle, target, -1, -1, -1, delta);
+        }
 
+        /**
+         * Swaps two slots of a vehicle's route, task1 being visited before task2
+         */
+        public static Move swap(int vehicle, int task1, int task2, double delta) {
+            return new Move(Type.SWAP, vehicle, vehicle, task1, task2, -1, delta);
+        }
 
-        private ConcreteTask(Action action, Task task) {
-            this.action = action;
-            this.task = task;
+        /**
+         * Moves the segment of a vehicle's route from first to last after another slot of the route
+         */
+        public static Move relocate(int vehicle, int first, int last, int after, double delta) {
+            return new Move(Type.RELOCATE, vehicle, vehicle, first, last, after, delta);
         }
 
-        public static ConcreteTask pickup(Task task) {
-            return new ConcreteTask(Action.PICKUP, task);
+        /**
+         * Reverses the segment of a vehicle's route from first to last
+         */
+        public static Move reverse(int vehicle, int first, int last, double delta) {
+            return new Move(Type.REVERSE, vehicle, vehicle, first, last, -1, delta);
+        }
+    }
+
+    /**
+     * The weight carried after each slot of a route, with a sparse table answering range-max queries over it in
+     * constant time. A profile describes one version of a route and is never modified.
+     */
+    public static class LoadProfile {
+        // max[k][i] is the largest load over the positions i to i + 2^k - 1
+        private final int[][] max;
+
+        private LoadProfile(State state, int vehicle) {
+            int length = 0;
+            for (int slot = state.head[vehicle]; slot >= 0; slot = state.next[slot]) length++;
+
+            int[] load = new int[length];
+            int weight = 0;
+            int i = 0;
+
+            for (int slot = state.head[vehicle]; slot >= 0; slot = state.next[slot]) {
+                weight += state.slots.loadChange(slot);
+                load[i++] = weight;
+            }
+
+            int levels = 1;
+            while (1 << levels <= length) levels++;
+
+            max = new int[levels][];
+            max[0] = load;
+            for (int k = 1; k < levels; k++) {
+                int half = 1 << k - 1;
+                max[k] = new int[length - 2 * half + 1];
+                for (i = 0; i < max[k].length; i++) {
+                    max[k][i] = Math.max(max[k - 1][i], max[k - 1][i + half]);
+                }
+            }
         }
 
-        public static ConcreteTask delivery(Task task) {
-            return new ConcreteTask(Action.DELIVERY, task);
+        public int length() {
+            return max[0].length;
         }
 
-        public Topology.City getCity() {
-            return action == Action.PICKUP ? task.pickupCity : task.deliveryCity;
+        /**
+         * @return the load carried after the slot at the position
+         */
+        public int load(int position) {
+            return max[0][position];
         }
 
-        public boolean isRelated(ConcreteTask other) {
-            if (other == null) return false;
-            return action == Action.PICKUP && other.action == Action.DELIVERY && task.equals(other.task);
+        /**
+         * @return the largest load carried after any slot between the two positions, both included
+         */
+        public int maxLoad(int from, int to) {
+            int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+            return Math.max(max[k][from], max[k][to - (1 << k) + 1]);
         }
     }
 
@@ -560,31 +2098,49 @@ public class Planner {
             return checkWeight(state);
         }
 
-        private static boolean checkWeight(State state) {
-            return (state.firstTasks.entrySet()).parallelStream().noneMatch(entry -> {
-                Vehicle vehicle = entry.getKey();
-                ConcreteTask task = entry.getValue();
+        /**
+         * Checks the weight constraint of the neighbour a move leads to, assuming the state itself is valid.
+         * Only the route of the vehicle receiving new load needs to be looked at.
+         */
+        public static boolean checkMove(State state, Move move) {
+            switch (move.type) {
+                case CHANGE_VEHICLE:
+                    // the couple is inserted at the head, so the new vehicle only carries this task at once
+                    return state.slots.task(state.head[move.vehicle]).weight <= state.vehicles[move.target].capacity();
+                case SWAP:
+                case RELOCATE:
+                case REVERSE:
+                    // only generated when the loads fit
+                    return true;
+                default:
+                    return false;
+            }
+        }
 
-                int weight = 0;
+        /**
+         * @param profile   load profile of the vehicle's route
+         * @param position1 position of task1 in the route
+         * @param position2 position of task2 in the route, after task1
+         */
+        static boolean checkSwapWeight(State state, LoadProfile profile, int vehicle, int task1, int task2, int position1, int position2) {
+            // Swapping shifts the load carried from task1 up to the slot before task2, nothing else changes
+            int delta = state.slots.loadChange(task2) - state.slots.loadChange(task1);
+            if (delta <= 0) return true;
 
-                // Go through the pickups/deliveries and make sure we do not ever violate the capacity
-                while (task != null) {
-                    // Update carried weight
-                    if (task.action == ConcreteTask.Action.PICKUP) {
-                        weight += task.task.weight;
-                    } else {
-                        weight -= task.task.weight;
-                    }
+            return profile.maxLoad(position1, position2 - 1) + delta <= state.vehicles[vehicle].capacity();
+        }
 
-                    if (vehicle.capacity() < weight) {
-                        return true;
-                    }
+        private static boolean checkWeight(State state) {
+            for (int v = 0; v < state.vehicles.length; v++) {
+                LoadProfile profile = state.loadProfile(v);
 
-                    task = state.nextTask.get(task);
+                // Make sure the carried weight never exceeds the capacity along the route
+                if (profile.length() > 0 && profile.maxLoad(0, profile.length() - 1) > state.vehicles[v].capacity()) {
+                    return false;
                 }
+            }
 
-                return false;
-            });
+            return true;
         }
 
     }
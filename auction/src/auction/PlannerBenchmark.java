@@ -0,0 +1,184 @@
+package auction;
+
+import logist.config.Parsers;
+import logist.task.Task;
+import logist.topology.Topology;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Micro-benchmarks of the planner's hot paths, to be run from the auction directory:
+ * <pre>
+ * java -cp bin:../intelagent_jars/* auction.PlannerBenchmark [topologies] [task counts] [fleet sizes]
+ * </pre>
+ * Every argument is a comma separated list, all the combinations are measured. Each operation is warmed up
+ * before being measured, then reported with its time and allocated bytes per operation, the number of garbage
+ * collections during the measurement and an operation specific figure: the neighbours generated per second
+ * or the mean marginal cost found by a simulation.
+ */
+public class PlannerBenchmark {
+    private static final String[] TOPOLOGIES = {"england", "france", "switzerland", "the_netherlands"};
+    private static final int[] TASKS = {20, 50, 100, 200, 500};
+    private static final int[] FLEETS = {2, 4, 8};
+
+    private static final long WARMUP = 500;
+    private static final long MEASUREMENT = 1000;
+    // search time of a single simulation
+    private static final long SIMULATION_TIMEOUT = 100;
+    private static final int CAPACITY = 30;
+    private static final int COST_PER_KM = 5;
+
+    // results are accumulated here so that the measured operations cannot be optimized away
+    private static double sink;
+
+    public static void main(String[] args) throws Exception {
+        String[] topologies = args.length > 0 ? args[0].split(",") : TOPOLOGIES;
+        int[] tasks = args.length > 1 ? parseInts(args[1]) : TASKS;
+        int[] fleets = args.length > 2 ? parseInts(args[2]) : FLEETS;
+
+        System.out.printf("%-20s %-16s %6s %8s %14s %14s %6s %16s%n",
+                "benchmark", "topology", "tasks", "vehicles", "ns/op", "B/op", "gc", "extra");
+
+        for (String name : topologies) {
+            Topology topology = Parsers.parseTopology("config/topology/" + name + ".xml");
+
+            for (int taskCount : tasks) {
+                for (int fleet : fleets) {
+                    run(name, topology, taskCount, fleet);
+                }
+            }
+        }
+
+        if (sink == 42) System.out.println();
+    }
+
+    private static void run(String name, Topology topology, int taskCount, int fleet) {
+        Random random = new Random(taskCount * 31 + fleet);
+        List<FastVehicle> vehicles = new ArrayList<>();
+        for (int i = 0; i < fleet; i++) {
+            vehicles.add(new FastVehicle(CAPACITY, topology.randomCity(random), COST_PER_KM));
+        }
+
+        Planner.State state = new Planner.State(new Planner.TaskSlots(TopologyIndex.of(topology)), vehicles);
+        for (int i = 0; i < taskCount; i++) {
+            state.addTask(randomTask(topology, random, i));
+        }
+
+        // shake the routes so that they look like the ones met during a search
+        for (int i = 0; i < 20 * taskCount; i++) {
+            List<Planner.Move> moves = state.chooseNeighbours(random);
+            if (!moves.isEmpty()) state.apply(moves.get(random.nextInt(moves.size())));
+        }
+
+        String params = String.format("%-16s %6d %8d", name, taskCount, fleet);
+
+        // the cost and the load profiles are cached by the state, they are computed again for every operation
+        report("refreshCosts", params, measure(() -> {
+            state.refreshCosts();
+            return state.getCost();
+        }), null);
+        report("clone", params, measure(() -> state.clone().getCost()), null);
+        report("checkConstraints", params, measure(() -> {
+            state.clearProfiles();
+            return Planner.Constraints.checkConstraints(state) ? 1 : 0;
+        }), null);
+
+        Result result = measure(() -> state.chooseNeighbours(random).size());
+        report("chooseNeighbours", params, result, String.format("%.0f/s", result.total / result.seconds()));
+
+        // the planner is given its tasks as during an auction, with shorter searches
+        Planner planner = new Planner(vehicles, topology);
+        for (int i = 0; i < taskCount; i++) {
+            planner.simulateWithNewTask(randomTask(topology, random, i), SIMULATION_TIMEOUT / 20, true);
+            planner.confirmNewPlan();
+        }
+
+        int[] next = {taskCount};
+        result = measure(() -> planner.simulateWithNewTask(randomTask(topology, random, next[0]++), SIMULATION_TIMEOUT, true));
+        report("simulateWithNewTask", params, result, String.format("%.1f", result.total / result.operations));
+    }
+
+    private static Task randomTask(Topology topology, Random random, int id) {
+        Topology.City from = topology.randomCity(random);
+        Topology.City to;
+        do {
+            to = topology.randomCity(random);
+        } while (to == from);
+
+        return new Task(id, from, to, 0, 3 + random.nextInt(8));
+    }
+
+    /**
+     * Runs the operation for the warmup time, then in batches for the measurement time
+     *
+     * @param operation the measured operation, returning a figure summed over the measurement
+     */
+    private static Result measure(DoubleSupplier operation) {
+        long batch = 1;
+        long end = System.currentTimeMillis() + WARMUP;
+
+        // grow the batches until they last a few milliseconds, so that reading the clocks costs nothing
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) sink += operation.getAsDouble();
+            if (System.nanoTime() - start < 5_000_000) batch *= 2;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Result result = new Result();
+
+        long collections = collectionCount();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        end = System.currentTimeMillis() + MEASUREMENT;
+
+        while (System.currentTimeMillis() < end) {
+            for (long i = 0; i < batch; i++) result.total += operation.getAsDouble();
+            result.operations += batch;
+        }
+
+        result.nanos = System.nanoTime() - start;
+        result.bytes = threads.getThreadAllocatedBytes(thread) - allocated;
+        result.collections = collectionCount() - collections;
+        sink += result.total;
+
+        return result;
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void report(String benchmark, String params, Result result, String extra) {
+        System.out.printf("%-20s %s %14.1f %14.1f %6d %16s%n", benchmark, params,
+                result.nanos / (double) result.operations, result.bytes / (double) result.operations,
+                result.collections, extra == null ? "" : extra);
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static class Result {
+        private long operations;
+        private long nanos;
+        private long bytes;
+        private long collections;
+        private double total;
+
+        private double seconds() {
+            return nanos / 1e9;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package auction;
+
+import logist.agent.Agent;
+import logist.config.ParserException;
+import logist.config.Parsers;
+import logist.config.XMLTag;
+import logist.plan.Plan;
+import logist.simulation.Vehicle;
+import logist.task.Task;
+import logist.task.TaskDistribution;
+import logist.task.TaskSet;
+import logist.topology.Topology;
+import logist.topology.Topology.City;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Runs an agent again on the auctions of a match recorded with the {@code record} property, and compares its bids
+ * and final plan with the recorded ones. To be run from the auction directory, where the topology is looked up:
+ * <pre>
+ * java -cp bin:../intelagent_jars/* auction.Replay match.log [iteration budget]
+ * </pre>
+ * The recorded properties are used, except for the iteration budget when one is given. Whatever the replayed bids,
+ * the rounds end with the recorded winners and bids. A match recorded with an iteration budget and replayed with
+ * the same one gives the same bids, so that two builds can be compared on the time they take for the same work.
+ */
+public class Replay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: Replay match.log [iteration budget]");
+            System.exit(1);
+        }
+
+        MatchLog log = MatchLog.read(new File(args[0]));
+        Map<String, String> properties = new HashMap<>(log.properties);
+        properties.put("seed", Long.toString(log.seed));
+        if (args.length > 1) properties.put("iteration-budget", args[1]);
+
+        Topology topology = findTopology(log.cities);
+        ReplayAgent agent = new ReplayAgent(log, topology, properties);
+        AuctionAgent auctionAgent = new AuctionAgent();
+        auctionAgent.setup(topology, new RecordedDistribution(log, topology), agent);
+
+        List<Task> tasks = new ArrayList<>();
+        List<Task> won = new ArrayList<>();
+        List<String> report = new ArrayList<>();
+        int identical = 0;
+        long totalTime = 0;
+
+        for (MatchLog.Round round : log.rounds) {
+            Task task = round.task(topology);
+            tasks.add(task);
+
+            long start = System.nanoTime();
+            Long bid = auctionAgent.askPrice(task);
+            long time = System.nanoTime() - start;
+            totalTime += time;
+
+            if (bid != null && bid == round.bid) identical++;
+            report.add(String.format("%s: recorded %d replayed %s in %.1f ms", task, round.bid, bid, time / 1e6));
+
+            auctionAgent.auctionResult(task, round.winner, round.bids);
+            if (round.winner == log.agentId) won.add(task);
+        }
+
+        report.forEach(System.out::println);
+        System.out.printf("%d/%d identical bids, %.1f ms bidding%n", identical, log.rounds.size(), totalTime / 1e6);
+
+        if (!Double.isNaN(log.planCost)) {
+            // task sets are indexed by task id, so they are built from all the tasks
+            TaskSet wonTasks = TaskSet.create(tasks.toArray(new Task[0]));
+            wonTasks.retainAll(won);
+
+            long start = System.nanoTime();
+            List<Plan> plans = auctionAgent.plan(agent.vehicles(), wonTasks);
+            long time = System.nanoTime() - start;
+
+            double cost = 0;
+            for (int i = 0; i < plans.size(); i++) cost += plans.get(i).totalDistance() * agent.vehicles().get(i).costPerKm();
+            System.out.printf("Final plan: recorded cost %.1f replayed %.1f in %.1f ms%n", log.planCost, cost, time / 1e6);
+        }
+    }
+
+    /**
+     * @return the topology of config/topology with the recorded cities
+     */
+    private static Topology findTopology(List<String> cities) throws ParserException {
+        File[] files = new File("config/topology").listFiles((dir, name) -> name.endsWith(".xml"));
+
+        for (File file : files == null ? new File[0] : files) {
+            Topology topology = Parsers.parseTopology(file.getPath());
+            List<String> names = topology.cities().stream().map(city -> city.name).collect(Collectors.toList());
+            if (names.equals(cities)) return topology;
+        }
+
+        throw new IllegalArgumentException("No topology in config/topology matches the recorded cities " + cities);
+    }
+
+    /**
+     * The distribution the recorded agent was given
+     */
+    private static class RecordedDistribution implements TaskDistribution {
+        private final MatchLog log;
+        private final int size;
+
+        private RecordedDistribution(MatchLog log, Topology topology) {
+            this.log = log;
+            this.size = topology.size();
+        }
+
+        @Override
+        public double probability(City from, City to) {
+            return log.probabilities[from.id * size + to.id];
+        }
+
+        @Override
+        public int reward(City from, City to) {
+            return log.rewards[from.id * size + to.id];
+        }
+
+        @Override
+        public int weight(City from, City to) {
+            return log.weights[from.id * size + to.id];
+        }
+    }
+
+    /**
+     * The recorded agent, with its vehicles and properties
+     */
+    private static class ReplayAgent implements Agent {
+        private final int id;
+        private final List<Vehicle> vehicles = new ArrayList<>();
+        private final Map<String, String> properties;
+
+        private ReplayAgent(MatchLog log, Topology topology, Map<String, String> properties) {
+            this.id = log.agentId;
+            this.properties = properties;
+
+            for (MatchLog.VehicleRecord vehicle : log.vehicles) {
+                vehicles.add(new FastVehicle(vehicle.capacity, topology.cities().get(vehicle.home), vehicle.costPerKm));
+            }
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public List<Vehicle> vehicles() {
+            return vehicles;
+        }
+
+        @Override
+        public TaskSet getTasks() {
+            return null;
+        }
+
+        @Override
+        public <T> T readProperty(String name, Class<T> type, T defaultValue) {
+            try {
+                return XMLTag.convert(properties, name, "agent", type, defaultValue);
+            } catch (ParserException e) {
+                throw new RuntimeException("parameter conversion failed", e);
+            }
+        }
+
+        @Override
+        public String name() {
+            return "replay";
+        }
+
+        // ----- Unused methods ----- //
+        @Override
+        public long getTotalDistanceUnits() {
+            return 0;
+        }
+
+        @Override
+        public double getTotalDistance() {
+            return 0;
+        }
+
+        @Override
+        public long getTotalCost() {
+            return 0;
+        }
+
+        @Override
+        public long getTotalReward() {
+            return 0;
+        }
+
+        @Override
+        public long getTotalProfit() {
+            return 0;
+        }
+
+        @Override
+        public int getTotalTasks() {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(logist.agent.AgentStatistics other) {
+            return 0;
+        }
+    }
+}
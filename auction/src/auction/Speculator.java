@@ -0,0 +1,90 @@
+package auction;
+
+import logist.task.Task;
+import logist.task.TaskDistribution;
+import logist.topology.Topology;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Uses the idle time between two auction rounds to simulate, on every planner, the tasks that are the most
+ * likely to be auctioned next, so that a bid on one of them can resume from an already optimized plan.
+ */
+public class Speculator implements Runnable {
+    // search time given to one task on one planner before moving on to the next one
+    private static final long SPECULATION_BUDGET = 50;
+
+    private final List<Task> candidates;
+    private List<Planner> planners;
+    private Thread thread;
+    private volatile boolean halted;
+    // next (task, planner) pair to simulate, kept across rounds since the idle windows can be short
+    private int cursor;
+
+    /**
+     * @param topology     the simulation's topology
+     * @param distribution the task distribution
+     * @param count        number of tasks to speculate on
+     */
+    public Speculator(Topology topology, TaskDistribution distribution, int count) {
+        int cities = topology.size();
+
+        // speculative tasks get negative ids, fixed per pair of cities
+        candidates = topology.cities().stream()
+                .flatMap(from -> topology.cities().stream()
+                        .filter(to -> !to.equals(from))
+                        .map(to -> new Task(-1 - (from.id * cities + to.id), from, to, 0, distribution.weight(from, to))))
+                .sorted(Comparator.comparingDouble(t -> -distribution.probability(t.pickupCity, t.deliveryCity)))
+                .limit(count)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Starts speculating on a background thread until {@link #stop()} is called
+     *
+     * @param planners the planners to speculate with, which must not be used in the meantime
+     */
+    public void start(List<Planner> planners) {
+        if (thread != null) return;
+
+        this.planners = planners;
+        planners.forEach(planner -> candidates.forEach(planner::prepareSpeculation));
+
+        halted = false;
+        thread = new Thread(this, "speculation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops speculating and waits for the thread to finish
+     */
+    public void stop() {
+        if (thread == null) return;
+
+        halted = true;
+        planners.forEach(Planner::cancelSpeculation);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        // successive passes refine the speculations of the previous ones
+        int pairs = candidates.size() * planners.size();
+        while (!halted && pairs > 0) {
+            cursor %= pairs;
+            Task task = candidates.get(cursor / planners.size());
+            Planner planner = planners.get(cursor % planners.size());
+            planner.speculate(task, SPECULATION_BUDGET, () -> halted);
+            cursor++;
+        }
+    }
+}
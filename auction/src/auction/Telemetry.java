@@ -0,0 +1,207 @@
+package auction;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters and sampled curves of the searches run by a planner since the last reset, collected only when the
+ * planner has telemetry enabled. Timings and best costs are sampled every {@link #SAMPLE_INTERVAL} iterations,
+ * so that the instrumented searches run at nearly the same speed as the others. Sampled iterations are timed
+ * with the processor time of their thread, so that a preemption during a sample is not scaled up to the others.
+ */
+public class Telemetry {
+    // iterations between two samples of a search
+    static final int SAMPLE_INTERVAL = 64;
+    // points kept per best cost curve, the curve is thinned out when it grows past them
+    private static final int CURVE_POINTS = 32;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean THREAD_CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final List<Search> searches = new ArrayList<>();
+    private int memoHits;
+    private int speculationHits;
+
+    /**
+     * Adds a finished search, must be called on the thread calling the planner
+     */
+    void add(Search search) {
+        searches.add(search);
+    }
+
+    /**
+     * @return processor time of the current thread in ns, or the wall clock time if the JVM cannot measure it
+     */
+    static long cpuNanos() {
+        return THREAD_CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void memoHit() {
+        memoHits++;
+    }
+
+    void speculationHit() {
+        speculationHits++;
+    }
+
+    public void reset() {
+        searches.clear();
+        memoHits = 0;
+        speculationHits = 0;
+    }
+
+    /**
+     * Appends the totals and every search as a JSON object
+     */
+    public void appendJson(StringBuilder json) {
+        long iterations = 0;
+        long neighbours = 0;
+        long accepted = 0;
+        long uphill = 0;
+        long samples = 0;
+        long ruins = 0;
+        long ruinSamples = 0;
+        double neighbourMs = 0;
+        double moveMs = 0;
+        double ruinMs = 0;
+
+        for (Search search : searches) {
+            iterations += search.iterations;
+            neighbours += search.neighbours;
+            accepted += search.accepted;
+            uphill += search.uphill;
+            samples += search.samples;
+            ruins += search.ruins;
+            ruinSamples += search.ruinSamples;
+            neighbourMs += search.estimate(search.neighbourNanos, search.iterations - search.ruins, search.samples);
+            moveMs += search.estimate(search.moveNanos, search.iterations - search.ruins, search.samples);
+            ruinMs += search.estimate(search.ruinNanos, search.ruins, search.ruinSamples);
+        }
+
+        json.append("{\"searches\":").append(searches.size())
+                .append(",\"iterations\":").append(iterations)
+                .append(",\"neighbours\":").append(neighbours)
+                .append(",\"acceptance\":").append(ratio(accepted, iterations))
+                .append(",\"uphill\":").append(ratio(uphill, accepted))
+                .append(",\"ruins\":").append(ruins)
+                .append(",\"samples\":").append(samples)
+                .append(",\"ruin-samples\":").append(ruinSamples)
+                .append(",\"neighbour-ms\":").append(neighbourMs)
+                .append(",\"move-ms\":").append(moveMs)
+                .append(",\"ruin-ms\":").append(ruinMs)
+                .append(",\"memo-hits\":").append(memoHits)
+                .append(",\"speculation-hits\":").append(speculationHits)
+                .append(",\"runs\":[");
+
+        for (int i = 0; i < searches.size(); i++) {
+            if (i > 0) json.append(',');
+            searches.get(i).appendJson(json);
+        }
+        json.append("]}");
+    }
+
+    private static double ratio(long value, long total) {
+        return total == 0 ? 0 : value / (double) total;
+    }
+
+    /**
+     * Figures of a single annealing run, only touched by the thread running it
+     */
+    static class Search {
+        private final double startCost;
+        private double bestCost;
+        private long iterations;
+        private long neighbours;
+        private long accepted;
+        private long uphill;
+        private long samples;
+        private long neighbourNanos;
+        private long moveNanos;
+        // ruin and recreate iterations, sampled apart from the moves
+        private long ruins;
+        private long ruinSamples;
+        private long ruinNanos;
+        private long duration;
+        private double temperature;
+        // best cost over time, as pairs of elapsed ms and cost
+        private final List<double[]> curve = new ArrayList<>();
+        private int curveInterval = 1;
+
+        Search(double startCost) {
+            this.startCost = startCost;
+            this.bestCost = startCost;
+        }
+
+        void iteration(int neighbours, boolean accepted, boolean uphill, double cost) {
+            iterations++;
+            this.neighbours += neighbours;
+            if (accepted) this.accepted++;
+            if (uphill) this.uphill++;
+            if (cost < bestCost) bestCost = cost;
+        }
+
+        void ruin(boolean accepted, boolean uphill, double cost) {
+            ruins++;
+            iteration(1, accepted, uphill, cost);
+        }
+
+        /**
+         * @param nanos time spent ruining, recreating and scoring the state in the sampled iteration
+         */
+        void sampleRuin(long nanos) {
+            ruinSamples++;
+            ruinNanos += nanos;
+        }
+
+        /**
+         * @param neighbourNanos time spent generating the neighbours in the sampled iteration
+         * @param moveNanos      time spent choosing and applying a move in the sampled iteration
+         * @param elapsed        ms since the start of the search
+         */
+        void sample(long neighbourNanos, long moveNanos, long elapsed) {
+            samples++;
+            this.neighbourNanos += neighbourNanos;
+            this.moveNanos += moveNanos;
+
+            if (samples % curveInterval != 0) return;
+            curve.add(new double[]{elapsed, bestCost});
+
+            if (curve.size() >= 2 * CURVE_POINTS) {
+                for (int i = 0; i < CURVE_POINTS; i++) curve.set(i, curve.get(2 * i + 1));
+                curve.subList(CURVE_POINTS, curve.size()).clear();
+                curveInterval *= 2;
+            }
+        }
+
+        /**
+         * @return the mean time of the sampled iterations of a kind scaled to all the iterations of that kind,
+         * in ms and bounded by the duration of the search
+         */
+        private double estimate(long sampledNanos, long count, long samples) {
+            return Math.min(duration, ratio(sampledNanos * count, samples * 1_000_000));
+        }
+
+        void end(long duration, double temperature, double cost) {
+            this.duration = duration;
+            this.temperature = temperature;
+            if (cost < bestCost) bestCost = cost;
+        }
+
+        private void appendJson(StringBuilder json) {
+            json.append("{\"ms\":").append(duration)
+                    .append(",\"iterations\":").append(iterations)
+                    .append(",\"start\":").append(startCost)
+                    .append(",\"best\":").append(bestCost)
+                    // JSON has no infinite numbers, a chain accepting everything has no temperature
+                    .append(",\"temperature\":").append(Double.isFinite(temperature) ? Double.toString(temperature) : "null")
+                    .append(",\"curve\":[");
+
+            for (int i = 0; i < curve.size(); i++) {
+                if (i > 0) json.append(',');
+                json.append('[').append((long) curve.get(i)[0]).append(',').append(curve.get(i)[1]).append(']');
+            }
+            json.append("]}");
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package auction;
+
+import logist.config.Parsers;
+import logist.topology.Topology;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Runs headless auction matches between agents, each one in its own JVM, and aggregates their results in CSV.
+ * To be run from the auction directory:
+ * <pre>
+ * java -cp bin:../intelagent_jars/* auction.Tournament [options] agent1 agent2 [agent3 ...]
+ *
+ *   -a file      agents configuration, config/agents.xml by default
+ *   -c file      auction configuration used as template, config/auction.xml by default
+ *   -s file      settings, config/settings_auction.xml by default
+ *   -t list      comma separated topologies, all the ones in config/topology by default
+ *   -n count     matches per pair of agents and topology, half of them with the seats swapped, 2 by default
+ *   -j count     matches run at once, half the processors by default
+ *   -tasks count tasks per match, the template's by default
+ *   -bid ms      bid timeout, the settings' by default
+ *   -plan ms     plan timeout, the settings' by default
+ *   -seed seed   seed of the first pair of matches, the others use the following ones
+ *   -o file      per agent and match results, results.csv by default, the summary going to results-summary.csv
+ * </pre>
+ * Every pair of agents plays on every topology. Both matches of a pair of swapped seats share their seed,
+ * so the tasks and the home cities are the same.
+ */
+public class Tournament {
+    private static final Pattern STATISTICS = Pattern.compile(
+            "Statistics\\[(.*)] bids=(\\d+) bid-ms=(\\d+) max-bid-ms=(\\d+) iterations=(\\d+)");
+
+    private final File agents;
+    private final File configuration;
+    private final File settings;
+    private final File directory;
+    private Integer taskCount;
+    private Long bidTimeout;
+    private Long planTimeout;
+
+    private Tournament(File agents, File configuration, File settings, File directory) {
+        this.agents = agents;
+        this.configuration = configuration;
+        this.settings = settings;
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String agentsPath = "config/agents.xml";
+        String configurationPath = "config/auction.xml";
+        String settingsPath = "config/settings_auction.xml";
+        String output = "results.csv";
+        List<String> topologies = null;
+        int matches = 2;
+        int jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        long seed = 0;
+        Integer taskCount = null;
+        Long bidTimeout = null;
+        Long planTimeout = null;
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-a": agentsPath = args[++i]; break;
+                case "-c": configurationPath = args[++i]; break;
+                case "-s": settingsPath = args[++i]; break;
+                case "-t": topologies = Arrays.asList(args[++i].split(",")); break;
+                case "-n": matches = Integer.parseInt(args[++i]); break;
+                case "-j": jobs = Integer.parseInt(args[++i]); break;
+                case "-tasks": taskCount = Integer.parseInt(args[++i]); break;
+                case "-bid": bidTimeout = Long.parseLong(args[++i]); break;
+                case "-plan": planTimeout = Long.parseLong(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-o": output = args[++i]; break;
+                default: names.add(args[i]);
+            }
+        }
+
+        if (names.size() < 2 || new HashSet<>(names).size() < names.size()) {
+            System.err.println("Usage: Tournament [options] agent1 agent2 [agent3 ...], with distinct agents");
+            System.exit(1);
+        }
+
+        if (topologies == null) {
+            String[] files = new File("config/topology").list((dir, name) -> name.endsWith(".xml"));
+            topologies = Arrays.stream(files == null ? new String[0] : files)
+                    .map(name -> name.substring(0, name.length() - 4))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        File directory = Files.createTempDirectory("tournament").toFile();
+        Tournament tournament = new Tournament(new File(agentsPath), new File(configurationPath), new File(settingsPath), directory);
+        tournament.taskCount = taskCount;
+        tournament.bidTimeout = bidTimeout;
+        tournament.planTimeout = planTimeout;
+
+        List<Match> schedule = tournament.schedule(names, topologies, matches, seed);
+        System.out.println("Running " + schedule.size() + " matches, " + jobs + " at once, in " + directory);
+
+        List<Match> played = tournament.play(schedule, jobs);
+        writeResults(played, new File(output));
+        writeSummary(played, new File(output.replaceFirst("(\\.csv)?$", "-summary.csv")));
+    }
+
+    /**
+     * @return all the matches of the tournament, each pair of agents playing on every topology
+     */
+    private List<Match> schedule(List<String> names, List<String> topologies, int matches, long seed) {
+        List<Match> schedule = new ArrayList<>();
+
+        for (String topology : topologies) {
+            for (int i = 0; i < names.size(); i++) {
+                for (int j = i + 1; j < names.size(); j++) {
+                    for (int m = 0; m < matches; m++) {
+                        boolean swapped = m % 2 == 1;
+                        String first = swapped ? names.get(j) : names.get(i);
+                        String second = swapped ? names.get(i) : names.get(j);
+                        schedule.add(new Match(schedule.size(), topology, seed + m / 2, first, second));
+                    }
+                }
+            }
+        }
+
+        return schedule;
+    }
+
+    private List<Match> play(List<Match> schedule, int jobs) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<Match>> futures = new ArrayList<>();
+
+        for (Match match : schedule) {
+            futures.add(executor.submit(() -> {
+                run(match);
+                System.out.println("Match " + match.id + " " + match.topology + " " + match.first + " - " + match.second
+                        + ": " + match.status);
+                return match;
+            }));
+        }
+
+        List<Match> played = new ArrayList<>();
+        for (Future<Match> future : futures) {
+            try {
+                played.add(future.get());
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        executor.shutdown();
+        return played;
+    }
+
+    /**
+     * Plays a match in its own directory and JVM, then reads its history and the statistics printed by the agents
+     */
+    private void run(Match match) {
+        File matchDirectory = new File(directory, "match-" + match.id);
+        File config = new File(matchDirectory, "config");
+        File log = new File(matchDirectory, "output.log");
+        File history = new File(matchDirectory, "history.xml");
+
+        try {
+            File topologies = new File(config, "topology");
+            if (!topologies.mkdirs()) throw new IOException("Cannot create " + topologies);
+
+            File topologyFile = new File(configuration.getAbsoluteFile().getParentFile(), "topology/" + match.topology + ".xml");
+            Files.copy(topologyFile.toPath(), new File(topologies, match.topology + ".xml").toPath());
+            Topology topology = Parsers.parseTopology(topologyFile.getPath());
+
+            writeSettings(new File(config, "settings_auction.xml"));
+            writeAgents(new File(config, "agents.xml"));
+            writeConfiguration(new File(config, "auction.xml"), match, topology);
+
+            // the agents read their settings relative to the working directory, so the match runs from its own one
+            String classPath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                    .map(entry -> new File(entry).getAbsolutePath())
+                    .collect(Collectors.joining(File.pathSeparator));
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+            Process process = new ProcessBuilder(java, "-cp", classPath, "logist.LogistPlatform",
+                    "-o", history.getAbsolutePath(), "config/auction.xml", match.first, match.second)
+                    .directory(matchDirectory)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log)
+                    .start();
+            int exit = process.waitFor();
+
+            if (!history.exists()) {
+                match.status = "failed (exit " + exit + ")";
+                return;
+            }
+
+            readHistory(match, history);
+            readStatistics(match, log);
+            match.status = "ok";
+        } catch (Exception e) {
+            match.status = "failed (" + e + ")";
+        }
+    }
+
+    private void writeSettings(File file) throws Exception {
+        Document document = parse(settings);
+        NodeList sets = document.getElementsByTagName("set");
+
+        for (int i = 0; i < sets.getLength(); i++) {
+            Element set = (Element) sets.item(i);
+            if (set.hasAttribute("flag-show-ui")) set.setAttribute("flag-show-ui", "false");
+            if (set.hasAttribute("timeout-bid") && bidTimeout != null) set.setAttribute("timeout-bid", bidTimeout.toString());
+            if (set.hasAttribute("timeout-plan") && planTimeout != null) set.setAttribute("timeout-plan", planTimeout.toString());
+        }
+
+        write(document, file);
+    }
+
+    private void writeAgents(File file) throws Exception {
+        Document document = parse(agents);
+        NodeList sets = document.getElementsByTagName("set");
+
+        // class paths are relative to the directory the tournament is run from
+        for (int i = 0; i < sets.getLength(); i++) {
+            Element set = (Element) sets.item(i);
+            if (set.hasAttribute("class-path")) {
+                set.setAttribute("class-path", new File(set.getAttribute("class-path")).getAbsolutePath() + File.separator);
+            }
+        }
+
+        write(document, file);
+    }
+
+    private void writeConfiguration(File file, Match match, Topology topology) throws Exception {
+        Document document = parse(configuration);
+
+        Element topologyTag = (Element) document.getElementsByTagName("topology").item(0);
+        topologyTag.setAttribute("import", "config/topology/" + match.topology + ".xml");
+
+        Element tasks = (Element) document.getElementsByTagName("tasks").item(0);
+        tasks.setAttribute("rngSeed", Long.toString(match.seed));
+        if (taskCount != null) tasks.setAttribute("number", taskCount.toString());
+
+        // the template's home cities belong to its own topology, every vehicle gets a distinct city of this one
+        List<Topology.City> cities = new ArrayList<>(topology.cities());
+        Collections.shuffle(cities, new Random(match.seed));
+        NodeList sets = document.getElementsByTagName("set");
+        int next = 0;
+
+        for (int i = 0; i < sets.getLength(); i++) {
+            Element set = (Element) sets.item(i);
+            if (set.hasAttribute("home")) {
+                set.setAttribute("home", cities.get(next++ % cities.size()).name);
+            }
+        }
+
+        write(document, file);
+    }
+
+    private static void readHistory(Match match, File history) throws Exception {
+        NodeList stats = parse(history).getElementsByTagName("stat");
+
+        for (int i = 0; i < stats.getLength(); i++) {
+            Element stat = (Element) stats.item(i);
+            Result result = new Result();
+            result.profit = Long.parseLong(value(stat, "total-profit"));
+            result.reward = Long.parseLong(value(stat, "total-reward"));
+            result.cost = Long.parseLong(value(stat, "total-cost"));
+            result.tasks = Integer.parseInt(value(stat, "total-tasks"));
+
+            match.results.put(match.seat(stat.getAttribute("agent")), result);
+        }
+
+        Result first = match.results.get(0);
+        Result second = match.results.get(1);
+        if (first != null && second != null) {
+            first.win = first.profit > second.profit;
+            second.win = second.profit > first.profit;
+        }
+    }
+
+    private static void readStatistics(Match match, File log) throws IOException {
+        for (String line : Files.readAllLines(log.toPath(), StandardCharsets.ISO_8859_1)) {
+            Matcher matcher = STATISTICS.matcher(line);
+            if (!matcher.find()) continue;
+
+            Result result = match.results.get(match.seat(matcher.group(1)));
+            if (result == null) continue;
+
+            result.bids = Integer.parseInt(matcher.group(2));
+            result.meanBidTime = Long.parseLong(matcher.group(3));
+            result.maxBidTime = Long.parseLong(matcher.group(4));
+            result.iterations = Long.parseLong(matcher.group(5));
+        }
+    }
+
+    private static void writeResults(List<Match> matches, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("match,topology,seed,agent,opponent,seat,status,profit,reward,cost,tasks,win,bids,mean-bid-ms,max-bid-ms,iterations");
+
+            for (Match match : matches) {
+                for (int seat = 0; seat < 2; seat++) {
+                    Result result = match.results.getOrDefault(seat, new Result());
+                    writer.println(String.join(",", Integer.toString(match.id), match.topology, Long.toString(match.seed),
+                            match.agent(seat), match.agent(1 - seat), Integer.toString(seat), "\"" + match.status + "\"",
+                            Long.toString(result.profit), Long.toString(result.reward), Long.toString(result.cost),
+                            Integer.toString(result.tasks), result.win ? "1" : "0", Integer.toString(result.bids),
+                            Long.toString(result.meanBidTime), Long.toString(result.maxBidTime), Long.toString(result.iterations)));
+                }
+            }
+        }
+
+        System.out.println("Results written to " + file);
+    }
+
+    /**
+     * Writes the results of each agent over all its successful matches
+     */
+    private static void writeSummary(List<Match> matches, File file) throws IOException {
+        Map<String, List<Result>> results = new TreeMap<>();
+
+        for (Match match : matches) {
+            if (!"ok".equals(match.status)) continue;
+            match.results.forEach((seat, result) -> results.computeIfAbsent(match.agent(seat), name -> new ArrayList<>()).add(result));
+        }
+
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            String header = "agent,matches,wins,win-rate,mean-profit,mean-tasks,mean-bid-ms,max-bid-ms,mean-iterations";
+            writer.println(header);
+            System.out.println(header);
+
+            results.forEach((agent, list) -> {
+                long wins = list.stream().filter(result -> result.win).count();
+                String line = String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.1f,%.1f,%.1f,%d,%.0f", agent, list.size(), wins,
+                        wins / (double) list.size(),
+                        list.stream().mapToLong(result -> result.profit).average().orElse(0),
+                        list.stream().mapToInt(result -> result.tasks).average().orElse(0),
+                        list.stream().mapToLong(result -> result.meanBidTime).average().orElse(0),
+                        list.stream().mapToLong(result -> result.maxBidTime).max().orElse(0),
+                        list.stream().mapToLong(result -> result.iterations).average().orElse(0));
+                writer.println(line);
+                System.out.println(line);
+            });
+        }
+
+        System.out.println("Summary written to " + file);
+    }
+
+    private static Document parse(File file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    private static void write(Document document, File file) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new DOMSource(document), new StreamResult(file));
+    }
+
+    private static String value(Element parent, String tag) {
+        return ((Element) parent.getElementsByTagName(tag).item(0)).getAttribute("value");
+    }
+
+    /**
+     * A match between two agents, the first one taking the first company of the configuration
+     */
+    private static class Match {
+        private final int id;
+        private final String topology;
+        private final long seed;
+        private final String first;
+        private final String second;
+        // results by seat
+        private final Map<Integer, Result> results = new HashMap<>();
+        private String status = "not run";
+
+        private Match(int id, String topology, long seed, String first, String second) {
+            this.id = id;
+            this.topology = topology;
+            this.seed = seed;
+            this.first = first;
+            this.second = second;
+        }
+
+        private String agent(int seat) {
+            return seat == 0 ? first : second;
+        }
+
+        private int seat(String agent) {
+            return first.equals(agent) ? 0 : 1;
+        }
+    }
+
+    private static class Result {
+        private long profit;
+        private long reward;
+        private long cost;
+        private int tasks;
+        private boolean win;
+        private int bids;
+        private long meanBidTime;
+        private long maxBidTime;
+        private long iterations;
+    }
+}
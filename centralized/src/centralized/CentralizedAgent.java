@@ -70,7 +70,7 @@ public class CentralizedAgent implements CentralizedBehavior {
      */
     private List<Plan> stochasticLocalSearch(List<Vehicle> vehicles, TaskSet tasks) {
         long deadline = System.currentTimeMillis() + timeout_plan;
-        State state = new State(vehicles, tasks);
+        State state = new State(vehicles, tasks, TopologyIndex.of(topology));
         System.out.println("Initial solution cost: " + state.getCost());
         Random random = new Random();
         double lastCost = Double.MAX_VALUE;
@@ -133,13 +133,23 @@ public class CentralizedAgent implements CentralizedBehavior {
     public static class State {
         public HashMap<Vehicle, ConcreteTask> firstTasks;
         public HashMap<ConcreteTask, ConcreteTask> nextTask;
+        // predecessor of every task, null for the first task of a route
+        public HashMap<ConcreteTask, ConcreteTask> prevTask;
+        private TopologyIndex topology;
+
+        // cached cost of each vehicle's route, kept up to date by the operators
+        private HashMap<Vehicle, Double> routeCosts;
+        private double cost;
 
         private State() {
         }
 
-        public State(List<Vehicle> vehicles, TaskSet tasks) {
+        public State(List<Vehicle> vehicles, TaskSet tasks, TopologyIndex topology) {
+            this.topology = topology;
             firstTasks = new HashMap<>();
             nextTask = new HashMap<>();
+            prevTask = new HashMap<>();
+            HashMap<Vehicle, ConcreteTask> lastTasks = new HashMap<>();
 
             vehicles.forEach(v -> firstTasks.put(v, null));
 
@@ -151,53 +161,80 @@ public class CentralizedAgent implements CentralizedBehavior {
                         Task task = taskIterator.next();
 
                         ConcreteTask pickup = ConcreteTask.pickup(task);
-                        ConcreteTask deliver = ConcreteTask.delivery(task);
+                        ConcreteTask deliver = pickup.partner;
+                        ConcreteTask lastTask = lastTasks.get(v);
 
                         nextTask.put(pickup, deliver);
                         nextTask.put(deliver, null);
+                        prevTask.put(pickup, lastTask);
+                        prevTask.put(deliver, pickup);
+                        lastTasks.put(v, deliver);
 
-                        if (firstTasks.get(v) == null) {
+                        if (lastTask == null) {
                             firstTasks.put(v, pickup);
                         } else {
-                            ConcreteTask lastTask = firstTasks.get(v);
-                            while (nextTask.get(lastTask) != null) lastTask = nextTask.get(lastTask);
-
                             nextTask.put(lastTask, pickup);
                         }
                     }
                 });
             }
+
+            routeCosts = new HashMap<>();
+            cost = 0;
+            vehicles.forEach(v -> {
+                double routeCost = computeRouteCost(v);
+                routeCosts.put(v, routeCost);
+                cost += routeCost;
+            });
         }
 
         public State clone() {
             State clone = new State();
             clone.nextTask = new HashMap<>(nextTask);
+            clone.prevTask = new HashMap<>(prevTask);
             clone.firstTasks = new HashMap<>(firstTasks);
+            clone.topology = topology;
+            clone.routeCosts = new HashMap<>(routeCosts);
+            clone.cost = cost;
             return clone;
         }
 
         public double getCost() {
-            final double[] cost = {0};
+            return cost;
+        }
 
-            firstTasks.forEach(((vehicle, concreteTask) -> {
-                if (concreteTask != null) {
-                    double costPerKM = vehicle.costPerKm();
-                    ConcreteTask current = concreteTask;
+        /**
+         * @return the cost of the routes computed from scratch rather than from the cached route costs
+         */
+        double computeCost() {
+            double total = 0;
+            for (Vehicle vehicle : routeCosts.keySet()) total += computeRouteCost(vehicle);
+            return total;
+        }
 
-                    cost[0] += vehicle.getCurrentCity().distanceTo(current.task.pickupCity) * costPerKM;
+        private double computeRouteCost(Vehicle vehicle) {
+            double distance = 0;
+            ConcreteTask previous = null;
 
-                    while (nextTask.get(current) != null) {
-                        ConcreteTask next = nextTask.get(current);
-                        Topology.City startCity = current.getCity();
-                        Topology.City endCity = next.getCity();
+            for (ConcreteTask current = firstTasks.get(vehicle); current != null; current = nextTask.get(current)) {
+                distance += distance(vehicle, previous, current);
+                previous = current;
+            }
 
-                        cost[0] += startCity.distanceTo(endCity) * costPerKM;
-                        current = next;
-                    }
-                }
-            }));
+            return distance * vehicle.costPerKm();
+        }
+
+        // distance between two consecutive tasks, a null origin being the vehicle's city and a null destination the end of the route
+        private double distance(Vehicle vehicle, ConcreteTask from, ConcreteTask to) {
+            if (to == null) return 0;
+            Topology.City origin = from == null ? vehicle.getCurrentCity() : from.getCity();
+            return topology.distance(origin, to.getCity());
+        }
 
-            return cost[0];
+        private void addRouteCost(Vehicle vehicle, double distance) {
+            double delta = distance * vehicle.costPerKm();
+            routeCosts.put(vehicle, routeCosts.get(vehicle) + delta);
+            cost += delta;
         }
 
         /**
@@ -217,7 +254,7 @@ public class CentralizedAgent implements CentralizedBehavior {
                 if (current != null) {
 
                     // Append moves actions until the first pickup
-                    vehicle.getCurrentCity().pathTo(current.getCity()).forEach(plan::appendMove);
+                    topology.appendPath(plan, vehicle.getCurrentCity(), current.getCity());
 
                     // Append first pickup
                     plan.appendPickup(current.task);
@@ -226,7 +263,7 @@ public class CentralizedAgent implements CentralizedBehavior {
                     while (nextTask.get(current) != null) {
                         ConcreteTask next = nextTask.get(current);
                         Topology.City nextCity = next.getCity();
-                        current.getCity().pathTo(nextCity).forEach(plan::appendMove);
+                        topology.appendPath(plan, current.getCity(), nextCity);
 
                         if (next.action == ConcreteTask.Action.PICKUP) {
                             plan.appendPickup(next.task);
@@ -264,36 +301,38 @@ public class CentralizedAgent implements CentralizedBehavior {
             // Apply the change vehicle operator
             for (Vehicle v : firstTasks.keySet()) {
                 if (vehicle == v) continue;
-                State neighbor = changeVehicle(vehicle, v);
-                if (Constraints.checkConstraints(neighbor)) {
-                    neighbors.add(neighbor);
+                if (Constraints.checkChangeVehicle(this, vehicle, v)) {
+                    neighbors.add(changeVehicle(vehicle, v));
                 }
             }
 
-            // Apply the change task order operator
+            // Apply the change task order operator, the positions of both tasks in the route give the loads
+            // the swap shifts
             ConcreteTask current = firstTasks.get(vehicle);
+            LoadProfile profile = new LoadProfile(this, vehicle);
+            int i = 0;
 
             while (nextTask.get(current) != null) {
                 ConcreteTask other = nextTask.get(current);
+                int j = i + 1;
 
                 do {
                     if (current.isRelated(other)) break;
 
-
                     // Only do a swap if it doesn't break a pickup/deliver relationship,
-                    // i.e. other is a delivery and gets moved before its pickup
-                    if (checkIfValidSwap(current, other)) {
-                        State neighbor = swapTasks(vehicle, current, other);
+                    // i.e. other is a delivery whose pickup lies between both tasks
+                    boolean pickupBetween = other.action == ConcreteTask.Action.DELIVERY && profile.position(other.partner) > i;
 
-                        if (Constraints.checkConstraints(neighbor)) {
-                            neighbors.add(neighbor);
-                        }
+                    if (!pickupBetween && Constraints.checkSwap(profile, vehicle, current, other, i, j)) {
+                        neighbors.add(swapTasks(vehicle, current, other));
                     }
 
                     other = nextTask.get(other);
+                    j++;
                 } while (other != null);
 
                 current = nextTask.get(current);
+                i++;
             }
 
 
@@ -313,6 +352,11 @@ public class CentralizedAgent implements CentralizedBehavior {
             neighbor.firstTasks.put(v2, pickup);
             neighbor.nextTask.put(pickup, delivery);
             neighbor.nextTask.put(delivery, first);
+            neighbor.prevTask.put(pickup, null);
+            neighbor.prevTask.put(delivery, pickup);
+            if (first != null) neighbor.prevTask.put(first, delivery);
+            neighbor.addRouteCost(v2, distance(v2, null, pickup) + distance(v2, pickup, delivery)
+                    + distance(v2, delivery, first) - distance(v2, null, first));
 
             return neighbor;
         }
@@ -321,57 +365,51 @@ public class CentralizedAgent implements CentralizedBehavior {
         private ConcreteTask removeFirstCouple(Vehicle vehicle) {
             // Remove pickup
             ConcreteTask pickup = firstTasks.get(vehicle);
+            ConcreteTask delivery = pickup.partner;
+            ConcreteTask prev = prevTask.get(delivery);
+            ConcreteTask afterDelivery = nextTask.get(delivery);
 
-            // Find the delivery times
-            ConcreteTask prev = pickup;
-            while (!pickup.isRelated(nextTask.get(prev)) && nextTask.get(prev) != null) {
-                // Advance
-                prev = nextTask.get(prev);
-            }
-
-
-            ConcreteTask delivery = nextTask.get(prev);
-
-            // Remove pickup
             if (delivery == nextTask.get(pickup)) {
-                firstTasks.put(vehicle, nextTask.get(delivery));
+                firstTasks.put(vehicle, afterDelivery);
+                if (afterDelivery != null) prevTask.put(afterDelivery, null);
+                addRouteCost(vehicle, distance(vehicle, null, afterDelivery)
+                        - distance(vehicle, null, pickup) - distance(vehicle, pickup, delivery) - distance(vehicle, delivery, afterDelivery));
             } else {
-                firstTasks.put(vehicle, nextTask.get(pickup));
+                ConcreteTask afterPickup = nextTask.get(pickup);
+                firstTasks.put(vehicle, afterPickup);
+                prevTask.put(afterPickup, null);
+                addRouteCost(vehicle, distance(vehicle, null, afterPickup) + distance(vehicle, prev, afterDelivery)
+                        - distance(vehicle, null, pickup) - distance(vehicle, pickup, afterPickup)
+                        - distance(vehicle, prev, delivery) - distance(vehicle, delivery, afterDelivery));
+
+                // Remove delivery
+                nextTask.put(prev, afterDelivery);
+                if (afterDelivery != null) prevTask.put(afterDelivery, prev);
             }
 
-            // Remove delivery
-            nextTask.put(prev, nextTask.get(delivery));
             return delivery;
         }
 
-        private boolean checkIfValidSwap(ConcreteTask task1, ConcreteTask task2) {
-            if (task2.action == ConcreteTask.Action.PICKUP) return true;
-            ConcreteTask current = nextTask.get(task1);
-
-            do {
-                if (current.isRelated(task2)) return false;
-                if (current == task2) return true;
-                current = nextTask.get(current);
-            } while (current != null);
-
-            return true;
-        }
-
         private State swapTasks(Vehicle v, ConcreteTask task1, ConcreteTask task2) {
             State neighbor = this.clone();
 
             // Get parents
-            ConcreteTask parent1 = null;
-            ConcreteTask parent2 = null;
-            for (Map.Entry<ConcreteTask, ConcreteTask> map : nextTask.entrySet()) {
-                if (task1 == map.getValue()) parent1 = map.getKey();
-                if (task2 == map.getValue()) parent2 = map.getKey() == task1 ? task2 : map.getKey();
-            }
+            ConcreteTask parent1 = prevTask.get(task1);
+            ConcreteTask parent2 = prevTask.get(task2) == task1 ? task2 : prevTask.get(task2);
 
             // Get children
             ConcreteTask child1 = nextTask.get(task1) == task2 ? task1 : nextTask.get(task1);
             ConcreteTask child2 = nextTask.get(task2);
 
+            // Only the edges around both tasks change
+            if (child1 == task1) {
+                neighbor.addRouteCost(v, distance(v, parent1, task2) + distance(v, task2, task1) + distance(v, task1, child2)
+                        - distance(v, parent1, task1) - distance(v, task1, task2) - distance(v, task2, child2));
+            } else {
+                neighbor.addRouteCost(v, distance(v, parent1, task2) + distance(v, task2, child1) + distance(v, parent2, task1) + distance(v, task1, child2)
+                        - distance(v, parent1, task1) - distance(v, task1, child1) - distance(v, parent2, task2) - distance(v, task2, child2));
+            }
+
             // Swap
             if (parent1 == null) {
                 neighbor.firstTasks.put(v, task2);
@@ -381,6 +419,10 @@ public class CentralizedAgent implements CentralizedBehavior {
             neighbor.nextTask.put(parent2, task1);
             neighbor.nextTask.put(task1, child2);
             neighbor.nextTask.put(task2, child1);
+            neighbor.prevTask.put(task2, parent1);
+            neighbor.prevTask.put(child1, task2);
+            neighbor.prevTask.put(task1, parent2);
+            if (child2 != null) neighbor.prevTask.put(child2, task1);
 
             return neighbor;
         }
@@ -391,31 +433,108 @@ public class CentralizedAgent implements CentralizedBehavior {
 
         public Action action;
         public Task task;
+        // the delivery of a pickup and the pickup of a delivery
+        public ConcreteTask partner;
+        // 2 * task id for a pickup and 2 * task id + 1 for a delivery, to index per task arrays
+        public final int index;
 
 
         private ConcreteTask(Action action, Task task) {
             this.action = action;
             this.task = task;
+            this.index = 2 * task.id + (action == Action.PICKUP ? 0 : 1);
         }
 
+        /**
+         * @return the pickup of the task, linked to its delivery through {@link #partner}
+         */
         public static ConcreteTask pickup(Task task) {
-            return new ConcreteTask(Action.PICKUP, task);
-        }
-
-        public static ConcreteTask delivery(Task task) {
-            return new ConcreteTask(Action.DELIVERY, task);
+            ConcreteTask pickup = new ConcreteTask(Action.PICKUP, task);
+            pickup.partner = new ConcreteTask(Action.DELIVERY, task);
+            pickup.partner.partner = pickup;
+            return pickup;
         }
 
         public Topology.City getCity() {
             return action == Action.PICKUP ? task.pickupCity : task.deliveryCity;
         }
 
+        /**
+         * @return the weight loaded on the vehicle by this task, negative for deliveries
+         */
+        public int loadChange() {
+            return action == Action.PICKUP ? task.weight : -task.weight;
+        }
+
         public boolean isRelated(ConcreteTask other) {
             if (other == null) return false;
             return action == Action.PICKUP && other.action == Action.DELIVERY && task.equals(other.task);
         }
     }
 
+    /**
+     * The weight carried after each task of a route, with a sparse table answering range-max queries over it in
+     * constant time, and the position of each task in the route. A profile describes one version of a route.
+     */
+    public static class LoadProfile {
+        // position[task.index] is the position of the task in the route, only valid for the tasks of the route
+        private final int[] position;
+        // max[k][i] is the largest load over the positions i to i + 2^k - 1
+        private final int[][] max;
+
+        public LoadProfile(State state, Vehicle vehicle) {
+            int length = 0;
+            int indices = 0;
+            for (ConcreteTask task = state.firstTasks.get(vehicle); task != null; task = state.nextTask.get(task)) {
+                length++;
+                indices = Math.max(indices, task.index + 1);
+            }
+
+            int[] load = new int[length];
+            position = new int[indices];
+            int weight = 0;
+            int i = 0;
+
+            for (ConcreteTask task = state.firstTasks.get(vehicle); task != null; task = state.nextTask.get(task)) {
+                weight += task.loadChange();
+                position[task.index] = i;
+                load[i++] = weight;
+            }
+
+            int levels = 1;
+            while (1 << levels <= length) levels++;
+
+            max = new int[levels][];
+            max[0] = load;
+            for (int k = 1; k < levels; k++) {
+                int half = 1 << k - 1;
+                max[k] = new int[length - 2 * half + 1];
+                for (i = 0; i < max[k].length; i++) {
+                    max[k][i] = Math.max(max[k - 1][i], max[k - 1][i + half]);
+                }
+            }
+        }
+
+        public int length() {
+            return max[0].length;
+        }
+
+        /**
+         * @return the position of a task of the route
+         */
+        public int position(ConcreteTask task) {
+            return position[task.index];
+        }
+
+        /**
+         * @return the largest load carried after any task between the two positions, both included
+         */
+        public int maxLoad(int from, int to) {
+            int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+            return Math.max(max[k][from], max[k][to - (1 << k) + 1]);
+        }
+    }
+
     /**
      * Constraints checker.
      * <p>
@@ -434,31 +553,41 @@ public class CentralizedAgent implements CentralizedBehavior {
             return checkWeight(state);
         }
 
-        private static boolean checkWeight(State state) {
-            return (state.firstTasks.entrySet()).parallelStream().noneMatch(entry -> {
-                Vehicle vehicle = entry.getKey();
-                ConcreteTask task = entry.getValue();
-
-                int weight = 0;
-
-                // Go through the pickups/deliveries and make sure we do not ever violate the capacity
-                while (task != null) {
-                    // Update carried weight
-                    if (task.action == ConcreteTask.Action.PICKUP) {
-                        weight += task.task.weight;
-                    } else {
-                        weight -= task.task.weight;
-                    }
+        /**
+         * Checks that moving the first task of v1 to the head of v2 keeps the state valid,
+         * only v2 receives new load and it carries the task on its own
+         */
+        public static boolean checkChangeVehicle(State state, Vehicle v1, Vehicle v2) {
+            return state.firstTasks.get(v1).task.weight <= v2.capacity();
+        }
 
-                    if (vehicle.capacity() < weight) {
-                        return true;
-                    }
+        /**
+         * Checks that swapping task1 with the later task2 keeps a valid state valid
+         *
+         * @param profile   the load profile of the vehicle's route
+         * @param position1 position of task1 in the route
+         * @param position2 position of task2 in the route, after task1
+         */
+        public static boolean checkSwap(LoadProfile profile, Vehicle vehicle, ConcreteTask task1, ConcreteTask task2,
+                                        int position1, int position2) {
+            // Swapping shifts the load carried from task1 up to the task before task2, nothing else changes
+            int delta = task2.loadChange() - task1.loadChange();
+            if (delta <= 0) return true;
+
+            return profile.maxLoad(position1, position2 - 1) + delta <= vehicle.capacity();
+        }
 
-                    task = state.nextTask.get(task);
+        private static boolean checkWeight(State state) {
+            for (Vehicle vehicle : state.firstTasks.keySet()) {
+                LoadProfile profile = new LoadProfile(state, vehicle);
+
+                // Make sure the carried weight never exceeds the capacity along the route
+                if (profile.length() > 0 && profile.maxLoad(0, profile.length() - 1) > vehicle.capacity()) {
+                    return false;
                 }
+            }
 
-                return false;
-            });
+            return true;
         }
 
     }
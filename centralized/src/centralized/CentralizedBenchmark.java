@@ -0,0 +1,272 @@
+package centralized;
+
+import logist.config.Parsers;
+import logist.simulation.Vehicle;
+import logist.task.Task;
+import logist.task.TaskSet;
+import logist.topology.Topology;
+
+import java.awt.Color;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Micro-benchmarks of the centralized search's hot paths, to be run from the centralized directory:
+ * <pre>
+ * java -cp bin:../intelagent_jars/* centralized.CentralizedBenchmark [topologies] [task counts] [fleet sizes]
+ * </pre>
+ * Every argument is a comma separated list, all the combinations are measured. Each operation is warmed up
+ * before being measured, then reported with its time and allocated bytes per operation, the number of garbage
+ * collections during the measurement and, for the neighbourhood and the search, the neighbours generated per
+ * second.
+ */
+public class CentralizedBenchmark {
+    private static final String[] TOPOLOGIES = {"england", "france", "switzerland", "the_netherlands"};
+    private static final int[] TASKS = {20, 50, 100, 200, 500};
+    private static final int[] FLEETS = {2, 4, 8};
+
+    private static final long WARMUP = 500;
+    private static final long MEASUREMENT = 1000;
+    // iterations of a single search
+    private static final int SEARCH_ITERATIONS = 100;
+    private static final double CHOICE_THRESHOLD = 0.4;
+    private static final int CAPACITY = 30;
+    private static final int COST_PER_KM = 5;
+
+    // results are accumulated here so that the measured operations cannot be optimized away
+    private static double sink;
+
+    public static void main(String[] args) throws Exception {
+        String[] topologies = args.length > 0 ? args[0].split(",") : TOPOLOGIES;
+        int[] tasks = args.length > 1 ? parseInts(args[1]) : TASKS;
+        int[] fleets = args.length > 2 ? parseInts(args[2]) : FLEETS;
+
+        System.out.printf("%-20s %-16s %6s %8s %14s %14s %6s %16s%n",
+                "benchmark", "topology", "tasks", "vehicles", "ns/op", "B/op", "gc", "extra");
+
+        for (String name : topologies) {
+            Topology topology = Parsers.parseTopology("config/topology/" + name + ".xml");
+
+            for (int taskCount : tasks) {
+                for (int fleet : fleets) {
+                    run(name, topology, taskCount, fleet);
+                }
+            }
+        }
+
+        if (sink == 42) System.out.println();
+    }
+
+    private static void run(String name, Topology topology, int taskCount, int fleet) {
+        Random random = new Random(taskCount * 31 + fleet);
+        List<Vehicle> vehicles = new ArrayList<>();
+        for (int i = 0; i < fleet; i++) {
+            vehicles.add(new BenchmarkVehicle(i, topology.randomCity(random)));
+        }
+
+        Task[] tasks = new Task[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            Topology.City from = topology.randomCity(random);
+            Topology.City to;
+            do {
+                to = topology.randomCity(random);
+            } while (to == from);
+
+            tasks[i] = new Task(i, from, to, 0, 3 + random.nextInt(8));
+        }
+
+        CentralizedAgent.State initial = new CentralizedAgent.State(vehicles, TaskSet.create(tasks), TopologyIndex.of(topology));
+
+        // shake the routes so that they look like the ones met during a search
+        CentralizedAgent.State shaken = initial;
+        for (int i = 0; i < 20 * taskCount; i++) {
+            List<CentralizedAgent.State> neighbours = shaken.chooseNeighbours();
+            if (!neighbours.isEmpty()) shaken = neighbours.get(random.nextInt(neighbours.size()));
+        }
+        CentralizedAgent.State state = shaken;
+
+        String params = String.format("%-16s %6d %8d", name, taskCount, fleet);
+
+        // the cost is cached by the state, it is computed again from the routes for every operation
+        report("computeCost", params, measure(state::computeCost), null);
+        report("clone", params, measure(() -> state.clone().getCost()), null);
+        report("checkConstraints", params, measure(() -> CentralizedAgent.Constraints.checkConstraints(state) ? 1 : 0), null);
+
+        Result result = measure(() -> state.chooseNeighbours().size());
+        report("chooseNeighbours", params, result, String.format("%.0f/s", result.total / result.seconds()));
+
+        // the search loop of the agent, started from the shaken state every time
+        result = measure(() -> search(state, random));
+        report("search", params, result, String.format("%.0f/s", result.total / result.seconds()));
+    }
+
+    /**
+     * Same steps as the agent's stochastic local search, for a fixed number of iterations
+     *
+     * @return the number of neighbours generated
+     */
+    private static double search(CentralizedAgent.State initial, Random random) {
+        CentralizedAgent.State state = initial;
+        long neighbours = 0;
+
+        for (int i = 0; i < SEARCH_ITERATIONS; i++) {
+            CentralizedAgent.State best = null;
+            for (CentralizedAgent.State neighbour : state.chooseNeighbours()) {
+                if (best == null || neighbour.getCost() < best.getCost()) best = neighbour;
+                neighbours++;
+            }
+
+            if (best != null && random.nextDouble() <= CHOICE_THRESHOLD) state = best;
+        }
+
+        sink += state.getCost();
+        return neighbours;
+    }
+
+    /**
+     * Runs the operation for the warmup time, then in batches for the measurement time
+     *
+     * @param operation the measured operation, returning a figure summed over the measurement
+     */
+    private static Result measure(DoubleSupplier operation) {
+        long batch = 1;
+        long end = System.currentTimeMillis() + WARMUP;
+
+        // grow the batches until they last a few milliseconds, so that reading the clocks costs nothing
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) sink += operation.getAsDouble();
+            if (System.nanoTime() - start < 5_000_000) batch *= 2;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Result result = new Result();
+
+        long collections = collectionCount();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        end = System.currentTimeMillis() + MEASUREMENT;
+
+        while (System.currentTimeMillis() < end) {
+            for (long i = 0; i < batch; i++) result.total += operation.getAsDouble();
+            result.operations += batch;
+        }
+
+        result.nanos = System.nanoTime() - start;
+        result.bytes = threads.getThreadAllocatedBytes(thread) - allocated;
+        result.collections = collectionCount() - collections;
+        sink += result.total;
+
+        return result;
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void report(String benchmark, String params, Result result, String extra) {
+        System.out.printf("%-20s %s %14.1f %14.1f %6d %16s%n", benchmark, params,
+                result.nanos / (double) result.operations, result.bytes / (double) result.operations,
+                result.collections, extra == null ? "" : extra);
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static class Result {
+        private long operations;
+        private long nanos;
+        private long bytes;
+        private long collections;
+        private double total;
+
+        private double seconds() {
+            return nanos / 1e9;
+        }
+    }
+
+    /**
+     * A vehicle standing in its home city, the only kind the search needs
+     */
+    private static class BenchmarkVehicle implements Vehicle {
+        private final int id;
+        private final Topology.City homeCity;
+
+        private BenchmarkVehicle(int id, Topology.City homeCity) {
+            this.id = id;
+            this.homeCity = homeCity;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String name() {
+            return "vehicle" + id;
+        }
+
+        @Override
+        public int capacity() {
+            return CAPACITY;
+        }
+
+        @Override
+        public Topology.City homeCity() {
+            return homeCity;
+        }
+
+        @Override
+        public int costPerKm() {
+            return COST_PER_KM;
+        }
+
+        @Override
+        public Topology.City getCurrentCity() {
+            return homeCity;
+        }
+
+        // ----- Unused methods ----- //
+        @Override
+        public double speed() {
+            return Double.MAX_VALUE;
+        }
+
+        @Override
+        public TaskSet getCurrentTasks() {
+            return null;
+        }
+
+        @Override
+        public long getReward() {
+            return 0;
+        }
+
+        @Override
+        public long getDistanceUnits() {
+            return 0;
+        }
+
+        @Override
+        public double getDistance() {
+            return 0;
+        }
+
+        @Override
+        public Color color() {
+            return null;
+        }
+    }
+}
@@ -29,6 +29,9 @@ public class DeliberativeAgent implements DeliberativeBehavior {
     // A* heuristic
     private Heuristic heuristic;
 
+    // distances and paths of the topology
+    private TopologyIndex topology;
+
     @Override
     public void setup(Topology topology, TaskDistribution td, Agent agent) {
         // initialize the planner
@@ -38,6 +41,8 @@ public class DeliberativeAgent implements DeliberativeBehavior {
         // throws IllegalArgumentException if algorithm or heuristic are unknown
         algorithm = Algorithm.valueOf(algorithmName.toUpperCase());
         heuristic = Heuristic.valueOf(heuristicName.toUpperCase());
+
+        this.topology = TopologyIndex.of(topology);
     }
 
     @Override
@@ -63,7 +68,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
         Queue<Node> queue = new LinkedList<>();
         HashSet<Node> c = new HashSet<>();
         Node bestGoal = null;
-        queue.add(Node.makeRoot(vehicle, tasks));
+        queue.add(Node.makeRoot(vehicle, tasks, topology));
 
         while (!queue.isEmpty()) {
             Node current = queue.remove();
@@ -116,7 +121,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
         PriorityQueue<Node> queue = new PriorityQueue<>(10, f);
         HashSet<Node> c = new HashSet<>();
         Node goal = null;
-        queue.add(Node.makeRoot(vehicle, tasks));
+        queue.add(Node.makeRoot(vehicle, tasks, topology));
 
         while (!queue.isEmpty()) {
             Node current = queue.remove();
@@ -161,7 +166,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
             curr = curr.next;
             switch (curr.generatingAction) {
                 case MOVE:
-                    curr.parent.agentPosition.pathTo(curr.agentPosition).forEach(plan::appendMove);
+                    topology.appendPath(plan, curr.parent.agentPosition, curr.agentPosition);
                     break;
                 case PICKUP:
                     plan.appendPickup(curr.processedTask);
@@ -184,6 +189,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
         public Node next;
 
         private Vehicle vehicle;
+        private TopologyIndex topology;
         private int weightCarried;
         private double cost;
         private Set<Task> tasksCarried;
@@ -191,14 +197,15 @@ public class DeliberativeAgent implements DeliberativeBehavior {
         private Task processedTask;
 
         // generates a root for the search tree
-        public static Node makeRoot(Vehicle vehicle, TaskSet taskSet) {
-            return new Node(vehicle.getCurrentCity(), vehicle, taskSet);
+        public static Node makeRoot(Vehicle vehicle, TaskSet taskSet, TopologyIndex topology) {
+            return new Node(vehicle.getCurrentCity(), vehicle, taskSet, topology);
         }
 
-        private Node(City position, Vehicle vehicle, TaskSet ts) {
+        private Node(City position, Vehicle vehicle, TaskSet ts, TopologyIndex topology) {
             this.agentPosition = position;
             this.cost = 0;
             this.vehicle = vehicle;
+            this.topology = topology;
             this.tasksAvailable = new HashSet<>(ts);
 
             // these two are useful only with more agents running, since a replan can have carried tasks
@@ -216,6 +223,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
             this.generatingAction = action;
             this.processedTask = toProcess;
             this.vehicle = vehicle;
+            this.topology = parent.topology;
             this.cost = parent.cost;
             this.tasksAvailable = new HashSet<>(parent.tasksAvailable);
             this.tasksCarried = new HashSet<>(parent.tasksCarried);
@@ -224,7 +232,7 @@ public class DeliberativeAgent implements DeliberativeBehavior {
             // state updates are inferred from the action that lead to it
             switch (action) {
                 case MOVE:
-                    cost += parent.agentPosition.distanceTo(agentPosition) * vehicle.costPerKm();
+                    cost += topology.distance(parent.agentPosition, agentPosition) * vehicle.costPerKm();
                     break;
                 case PICKUP:
                     tasksAvailable.remove(toProcess);
@@ -274,8 +282,8 @@ public class DeliberativeAgent implements DeliberativeBehavior {
 
         // returns the most costly trip that could be performed to act out any delivery
         public double getMaximumFutureCost() {
-            double deliverCost = tasksCarried.stream().mapToDouble(t -> agentPosition.distanceTo(t.deliveryCity) * vehicle.costPerKm()).max().orElse(0);
-            double pickupCost = tasksAvailable.stream().mapToDouble(t -> (agentPosition.distanceTo(t.pickupCity) + t.pathLength()) * vehicle.costPerKm()).max().orElse(0);
+            double deliverCost = tasksCarried.stream().mapToDouble(t -> topology.distance(agentPosition, t.deliveryCity) * vehicle.costPerKm()).max().orElse(0);
+            double pickupCost = tasksAvailable.stream().mapToDouble(t -> (topology.distance(agentPosition, t.pickupCity) + topology.distance(t.pickupCity, t.deliveryCity)) * vehicle.costPerKm()).max().orElse(0);
 
             return Math.max(deliverCost, pickupCost);
         }
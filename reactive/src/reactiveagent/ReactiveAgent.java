@@ -21,6 +21,7 @@ public class ReactiveAgent implements ReactiveBehavior {
 
     private TaskDistribution td;
     private Topology topology;
+    private TopologyIndex index;
     private Agent myAgent;
     private int numActions;
     private int costPerKilometer;
@@ -36,6 +37,7 @@ public class ReactiveAgent implements ReactiveBehavior {
         // picked from first vehicle and used to generate strategy
         this.costPerKilometer = agent.vehicles().get(0).costPerKm();
         this.topology = topology;
+        this.index = TopologyIndex.of(topology);
         this.td = td;
         this.numActions = 0;
         this.myAgent = agent;
@@ -196,13 +198,13 @@ public class ReactiveAgent implements ReactiveBehavior {
         private void initRewards() {
             currentCity.neighbors().forEach(city -> {
                 if (city.equals(taskDestination)) {
-                    reward.put(city, td.reward(currentCity, city) - currentCity.distanceTo(city) * costPerKilometer);
+                    reward.put(city, td.reward(currentCity, city) - index.distance(currentCity, city) * costPerKilometer);
                 } else {
-                    reward.put(city, -currentCity.distanceTo(city) * costPerKilometer);
+                    reward.put(city, -index.distance(currentCity, city) * costPerKilometer);
                 }
             });
             if (taskDestination != null && !reward.containsKey(taskDestination)) {
-                reward.put(taskDestination, td.reward(currentCity, taskDestination) - currentCity.distanceTo(taskDestination) * costPerKilometer);
+                reward.put(taskDestination, td.reward(currentCity, taskDestination) - index.distance(currentCity, taskDestination) * costPerKilometer);
             }
         }
 
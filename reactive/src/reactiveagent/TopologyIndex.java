@@ -0,0 +1,84 @@
+package reactiveagent;
+
+import logist.plan.Plan;
+import logist.topology.Topology;
+import logist.topology.Topology.City;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Flat view of a topology, built once per topology.
+ * <p>
+ * Cities are identified by their dense id, the distances and the first hop of the shortest path
+ * between every pair of cities are stored in row-major arrays, so that cost computations and
+ * path expansions do not go through the City object graph.
+ */
+public class TopologyIndex {
+    private static final Map<Topology, TopologyIndex> indexes = new WeakHashMap<>();
+
+    private final int size;
+    private final City[] cities;
+    private final double[] distances;
+    private final int[] nextHops;
+
+    /**
+     * @param topology the topology to index
+     * @return the index of the topology, shared by all its users
+     */
+    public static synchronized TopologyIndex of(Topology topology) {
+        return indexes.computeIfAbsent(topology, TopologyIndex::new);
+    }
+
+    private TopologyIndex(Topology topology) {
+        size = topology.size();
+        cities = new City[size];
+        distances = new double[size * size];
+        nextHops = new int[size * size];
+
+        for (City city : topology) {
+            cities[city.id] = city;
+        }
+
+        for (City from : cities) {
+            for (City to : cities) {
+                int pair = from.id * size + to.id;
+                distances[pair] = from.distanceTo(to);
+                nextHops[pair] = from == to ? to.id : from.pathTo(to).get(0).id;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public City city(int id) {
+        return cities[id];
+    }
+
+    public double distance(int from, int to) {
+        return distances[from * size + to];
+    }
+
+    public double distance(City from, City to) {
+        return distances[from.id * size + to.id];
+    }
+
+    /**
+     * @return the id of the city following from on the shortest path to to
+     */
+    public int nextHop(int from, int to) {
+        return nextHops[from * size + to];
+    }
+
+    /**
+     * Appends the moves of the shortest path between two cities to a plan
+     */
+    public void appendPath(Plan plan, City from, City to) {
+        for (int current = from.id; current != to.id; ) {
+            current = nextHops[current * size + to.id];
+            plan.appendMove(cities[current]);
+        }
+    }
+}